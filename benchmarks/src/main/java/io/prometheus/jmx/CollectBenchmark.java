@@ -0,0 +1,99 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole scrape of the local JVM: reading the beans, matching the rules and building the samples.
+ *
+ * Registers Cassandra table beans, Tomcat servlet beans and beans with open
+ * data, each around the given number of beans, and scrapes only those.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollectBenchmark {
+
+    @Param({"cassandra.yml", "tomcat.yml", "default"})
+    public String config;
+
+    @Param({"1000"})
+    public int beans;
+
+    private SyntheticBeans syntheticBeans;
+    private JmxCollector collector;
+
+    @Setup
+    public void setUp() throws Exception {
+        syntheticBeans = new SyntheticBeans();
+        syntheticBeans.addCassandra(beans / SyntheticBeans.CASSANDRA_METRICS.length);
+        syntheticBeans.addTomcat(beans);
+        syntheticBeans.addOpenData(beans / 10, 10);
+
+        Config c = Config.from("default".equals(config) ? "" : SyntheticBeans.exampleConfig(config));
+        List<ObjectName> whitelist = new ArrayList<ObjectName>();
+        whitelist.add(new ObjectName("org.apache.cassandra.metrics:*"));
+        whitelist.add(new ObjectName("Catalina:*"));
+        whitelist.add(new ObjectName("synthetic:*"));
+        c.whitelistObjectNames = whitelist;
+        collector = new JmxCollector(c);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        syntheticBeans.unregisterAll();
+    }
+
+    @Benchmark
+    public List<MetricFamilySamples> collect() {
+        return collector.collect();
+    }
+
+    @Benchmark
+    public void collectAndWrite004() throws IOException {
+        TextFormat.write004(new NullWriter(), Collections.enumeration(collector.collect()));
+    }
+
+    @Benchmark
+    public void writeTextFormat() throws IOException {
+        collector.writeTextFormat(new NullWriter());
+    }
+
+    private static class NullWriter extends Writer {
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        public void write(String str) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.prometheus.jmx;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Splitting ObjectNames into their properties in order, done for every bean of every scrape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyPropertyListBenchmark {
+
+    @Param({"1000"})
+    public int beans;
+
+    private SyntheticBeans syntheticBeans;
+    private List<ObjectName> names;
+
+    @Setup
+    public void setUp() throws Exception {
+        syntheticBeans = new SyntheticBeans();
+        syntheticBeans.addCassandra(beans / SyntheticBeans.CASSANDRA_METRICS.length);
+        syntheticBeans.addTomcat(beans);
+        names = syntheticBeans.names();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        syntheticBeans.unregisterAll();
+    }
+
+    @Benchmark
+    public void getKeyPropertyList(Blackhole bh) {
+        for (ObjectName name : names) {
+            bh.consume(JmxScraper.getKeyPropertyList(name));
+        }
+    }
+}
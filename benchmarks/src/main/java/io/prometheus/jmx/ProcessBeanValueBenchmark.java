@@ -0,0 +1,95 @@
+package io.prometheus.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Flattening CompositeData and TabularData attribute values into receiver calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessBeanValueBenchmark {
+
+    @Param({"10", "100"})
+    public int rows;
+
+    private CountingReceiver receiver;
+    private JmxScraper scraper;
+    private KeyPropertyList beanProperties;
+    private CompositeData composite;
+    private CompositeData lastGcInfo;
+    private TabularData tabular;
+
+    @Setup
+    public void setUp() throws Exception {
+        receiver = new CountingReceiver();
+        scraper = new JmxScraper(new Config(), receiver, JmxConnectionPool.DEFAULT);
+        beanProperties = KeyPropertyList.parse("type=OpenData,name=bean");
+        composite = SyntheticBeans.memoryUsage(1);
+        // A composite of maps of composites, once there's been a collection.
+        System.gc();
+        for (ObjectName name : ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("java.lang:type=GarbageCollector,*"), null)) {
+            Object info = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "LastGcInfo");
+            if (info != null) {
+                lastGcInfo = (CompositeData) info;
+            }
+        }
+        tabular = SyntheticBeans.counters(rows);
+    }
+
+    @Benchmark
+    public int compositeData() {
+        scraper.processBeanValue(receiver, "synthetic", beanProperties, AttributePath.EMPTY,
+                "Usage", composite.getCompositeType().getTypeName(), "Usage attribute", composite);
+        return receiver.count;
+    }
+
+    @Benchmark
+    public int tabularData() {
+        scraper.processBeanValue(receiver, "synthetic", beanProperties, AttributePath.EMPTY,
+                "Counters", tabular.getTabularType().getTypeName(), "Counters attribute", tabular);
+        return receiver.count;
+    }
+
+    @Benchmark
+    public int lastGcInfo() {
+        scraper.processBeanValue(receiver, "java.lang", beanProperties, AttributePath.EMPTY,
+                "LastGcInfo", lastGcInfo.getCompositeType().getTypeName(), "LastGcInfo attribute", lastGcInfo);
+        return receiver.count;
+    }
+
+    private static class CountingReceiver implements JmxScraper.BeanValueReceiver {
+        int count;
+
+        public void recordBean(
+                String domain,
+                KeyPropertyList beanProperties,
+                AttributePath attrKeys,
+                String attrName,
+                String attrType,
+                String attrDescription,
+                Object value) {
+            count++;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package io.prometheus.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning scraped values into samples with the rules of an example config,
+ * without the JMX calls. With ruleCache true the rules are cached as
+ * configured, with false every value goes through the regexes, as on the
+ * first scrape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleMatchingBenchmark {
+
+    @Param({"cassandra.yml", "tomcat.yml"})
+    public String config;
+
+    @Param({"true", "false"})
+    public boolean ruleCache;
+
+    @Param({"1000"})
+    public int beans;
+
+    private JmxCollector collector;
+    private List<Input> inputs;
+
+    @Setup
+    public void setUp() throws Exception {
+        SyntheticBeans syntheticBeans = new SyntheticBeans();
+        syntheticBeans.addCassandra(beans / SyntheticBeans.CASSANDRA_METRICS.length);
+        syntheticBeans.addTomcat(beans);
+        inputs = new ArrayList<Input>();
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : syntheticBeans.names()) {
+            for (MBeanAttributeInfo attr : mbs.getMBeanInfo(name).getAttributes()) {
+                inputs.add(new Input(name, attr, mbs.getAttribute(name, attr.getName())));
+            }
+        }
+        syntheticBeans.unregisterAll();
+
+        Config c = Config.from(SyntheticBeans.exampleConfig(config));
+        if (!ruleCache) {
+            for (Rule rule : c.rules) {
+                rule.cache = false;
+                rule.cacheIfMatchEndsBeforeValue = false;
+            }
+        }
+        collector = new JmxCollector(c);
+    }
+
+    @Benchmark
+    public TextFormatBuffer recordBeans() {
+        TextFormatBuffer sink = new TextFormatBuffer();
+        JmxCollector.Receiver receiver = collector.new Receiver(sink);
+        for (Input input : inputs) {
+            receiver.recordBean(input.domain, input.beanProperties, AttributePath.EMPTY,
+                    input.attrName, input.attrType, input.attrDescription, input.value);
+        }
+        return sink;
+    }
+
+    private static class Input {
+        final String domain;
+        final KeyPropertyList beanProperties;
+        final String attrName;
+        final String attrType;
+        final String attrDescription;
+        final Object value;
+
+        Input(ObjectName name, MBeanAttributeInfo attr, Object value) {
+            this.domain = name.getDomain();
+            this.beanProperties = KeyPropertyList.parse(name.getKeyPropertyListString());
+            this.attrName = attr.getName();
+            this.attrType = attr.getType();
+            this.attrDescription = attr.getDescription();
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Name sanitization as done for every sample of a scrape, comparing the
+ * previous regex implementation with NameCache.
+ *
+ * The names are shaped like the default format names and label names of a
+ * Cassandra node. Run with -prof gc to see the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SafeNameBenchmark {
+
+    // As previously compiled by each JmxCollector.Receiver.
+    private static final Pattern UNSAFE_CHARS = Pattern.compile("[^a-zA-Z0-9:_]");
+    private static final Pattern MULTIPLE_UNDERSCORES = Pattern.compile("__+");
+    private static final Pattern SNAKE_CASE = Pattern.compile("([a-z0-9])([A-Z])");
+
+    private static final String[] ATTRIBUTES = {"Count", "Value", "Mean", "Max", "Min", "50thPercentile", "99thPercentile", "OneMinuteRate"};
+    private static final String[] LABELS = {"keyspace", "scope", "name", "type", "path"};
+
+    private String[] metricNames;
+    private String[] labelNames;
+    private String[] attrNames;
+    private NameCache cache;
+
+    @Setup
+    public void setUp() {
+        List<String> names = new ArrayList<String>();
+        for (int table = 0; table < 100; table++) {
+            for (String attribute : ATTRIBUTES) {
+                names.add("org.apache.cassandra.metrics_Table_ks" + (table % 10) + ".table-" + table + "__" + attribute);
+            }
+        }
+        metricNames = names.toArray(new String[names.size()]);
+
+        labelNames = new String[metricNames.length];
+        for (int i = 0; i < labelNames.length; i++) {
+            labelNames[i] = LABELS[i % LABELS.length];
+        }
+        attrNames = new String[metricNames.length];
+        for (int i = 0; i < attrNames.length; i++) {
+            attrNames[i] = ATTRIBUTES[i % ATTRIBUTES.length];
+        }
+        cache = new NameCache(100000);
+    }
+
+    private static String regexSafeName(String s) {
+        return MULTIPLE_UNDERSCORES.matcher(UNSAFE_CHARS.matcher(s).replaceAll("_")).replaceAll("_");
+    }
+
+    @Benchmark
+    public void regex(Blackhole bh) {
+        for (int i = 0; i < metricNames.length; i++) {
+            bh.consume(regexSafeName(metricNames[i]).toLowerCase());
+            bh.consume(regexSafeName(labelNames[i]));
+            bh.consume(SNAKE_CASE.matcher(attrNames[i]).replaceAll("$1_$2").toLowerCase());
+        }
+    }
+
+    @Benchmark
+    public void singlePass(Blackhole bh) {
+        for (int i = 0; i < metricNames.length; i++) {
+            bh.consume(NameCache.safeName(metricNames[i]).toLowerCase());
+            bh.consume(NameCache.safeName(labelNames[i]));
+        }
+    }
+
+    @Benchmark
+    public void cached(Blackhole bh) {
+        for (int i = 0; i < metricNames.length; i++) {
+            bh.consume(cache.safeName(metricNames[i], true));
+            bh.consume(cache.safeName(labelNames[i], false));
+            bh.consume(cache.snakeCase(attrNames[i]));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.prometheus.jmx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * A read-only MBean with fixed attribute values, so benchmarks can use any
+ * attribute names, including the lowercase ones of Tomcat's model MBeans.
+ */
+class SyntheticBean implements DynamicMBean {
+    private final Map<String, Object> attributes;
+    private final MBeanInfo info;
+
+    SyntheticBean(LinkedHashMap<String, Object> attributes) {
+        this.attributes = attributes;
+        MBeanAttributeInfo[] attributeInfos = new MBeanAttributeInfo[attributes.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            attributeInfos[i++] = new MBeanAttributeInfo(
+                    entry.getKey(), entry.getValue().getClass().getName(), entry.getKey() + " attribute", true, false, false);
+        }
+        info = new MBeanInfo(SyntheticBean.class.getName(), "Synthetic bean", attributeInfos,
+                new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (!attributes.containsKey(attribute)) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return attributes.get(attribute);
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) {
+                list.add(new Attribute(name, attributes.get(name)));
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException();
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException();
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}
@@ -0,0 +1,119 @@
+package io.prometheus.jmx;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Scanner;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * Beans shaped like the ones the example configs are written for, at a
+ * given cardinality, registered in the platform MBeanServer.
+ */
+class SyntheticBeans {
+    static final String[] CASSANDRA_METRICS = {"ReadLatency", "WriteLatency", "LiveSSTableCount", "PendingCompactions"};
+    static final String[] TOMCAT_SERVLET_ATTRIBUTES = {"requestCount", "maxTime", "processingTime", "errorCount", "loadTime"};
+
+    private final List<ObjectName> names = new ArrayList<ObjectName>();
+
+    /**
+     * Cassandra table metrics, ten tables per keyspace.
+     */
+    void addCassandra(int tables) throws Exception {
+        for (int table = 0; table < tables; table++) {
+            for (String metric : CASSANDRA_METRICS) {
+                LinkedHashMap<String, Object> attributes = new LinkedHashMap<String, Object>();
+                attributes.put("Count", (long) table * 1000);
+                attributes.put("Value", (long) table);
+                attributes.put("Mean", table * 0.5);
+                attributes.put("99thPercentile", table * 2.5);
+                register("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks" + (table / 10)
+                        + ",scope=table" + table + ",name=" + metric, attributes);
+            }
+        }
+    }
+
+    /**
+     * Tomcat servlets, ten per web module.
+     */
+    void addTomcat(int servlets) throws Exception {
+        for (int servlet = 0; servlet < servlets; servlet++) {
+            LinkedHashMap<String, Object> attributes = new LinkedHashMap<String, Object>();
+            for (String attribute : TOMCAT_SERVLET_ATTRIBUTES) {
+                attributes.put(attribute, servlet);
+            }
+            attributes.put("servletClass", "org.example.Servlet" + servlet);
+            register("Catalina:j2eeType=Servlet,WebModule=//localhost/app" + (servlet / 10)
+                    + ",name=servlet" + servlet + ",J2EEApplication=none,J2EEServer=none", attributes);
+        }
+    }
+
+    /**
+     * Beans with a CompositeData attribute and a TabularData attribute of the given number of rows.
+     */
+    void addOpenData(int beans, int rows) throws Exception {
+        for (int bean = 0; bean < beans; bean++) {
+            LinkedHashMap<String, Object> attributes = new LinkedHashMap<String, Object>();
+            attributes.put("Usage", memoryUsage(bean));
+            attributes.put("Counters", counters(rows));
+            register("synthetic:type=OpenData,name=bean" + bean, attributes);
+        }
+    }
+
+    private void register(String name, LinkedHashMap<String, Object> attributes) throws Exception {
+        ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new SyntheticBean(attributes), objectName);
+        names.add(objectName);
+    }
+
+    List<ObjectName> names() {
+        return names;
+    }
+
+    void unregisterAll() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : names) {
+            mbs.unregisterMBean(name);
+        }
+        names.clear();
+    }
+
+    static CompositeData memoryUsage(long base) throws Exception {
+        String[] keys = {"committed", "init", "max", "used"};
+        CompositeType type = new CompositeType("MemoryUsage", "Memory usage", keys, keys,
+                new OpenType[]{SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG});
+        return new CompositeDataSupport(type, keys, new Object[]{base * 4, base, base * 8, base * 2});
+    }
+
+    static TabularDataSupport counters(int rows) throws Exception {
+        String[] keys = {"key", "value"};
+        CompositeType rowType = new CompositeType("Counter", "A named counter", keys, keys,
+                new OpenType[]{SimpleType.STRING, SimpleType.LONG});
+        TabularDataSupport table = new TabularDataSupport(new TabularType("Counters", "Named counters", rowType, new String[]{"key"}));
+        for (int row = 0; row < rows; row++) {
+            table.put(new CompositeDataSupport(rowType, keys, new Object[]{"counter" + row, (long) row}));
+        }
+        return table;
+    }
+
+    /**
+     * One of the configs in example_configs, packaged with the benchmarks.
+     */
+    static String exampleConfig(String name) {
+        InputStream in = SyntheticBeans.class.getResourceAsStream("/example_configs/" + name);
+        if (in == null) {
+            throw new IllegalArgumentException("No example config " + name);
+        }
+        return new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+    }
+}
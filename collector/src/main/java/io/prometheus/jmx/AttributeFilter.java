@@ -0,0 +1,24 @@
+package io.prometheus.jmx;
+
+import java.util.Set;
+import javax.management.ObjectName;
+
+/**
+ * Which attributes to read of the beans matching an ObjectName pattern.
+ */
+class AttributeFilter {
+  ObjectName objectName;
+  // Null to read all attributes not excluded.
+  Set<String> includeAttributes;
+  Set<String> excludeAttributes;
+
+  boolean allows(ObjectName bean, String attrName) {
+    if (!objectName.apply(bean)) {
+      return true;
+    }
+    if (includeAttributes != null && !includeAttributes.contains(attrName)) {
+      return false;
+    }
+    return excludeAttributes == null || !excludeAttributes.contains(attrName);
+  }
+}
@@ -0,0 +1,69 @@
+package io.prometheus.jmx;
+
+/**
+ * A bean attribute as passed to the receiver, usable as a cache key without
+ * building the strings the rules are matched against.
+ *
+ * The properties of a bean are the same instance on every scrape, and the
+ * attribute names and descriptions come from the cached MBeanInfo, so
+ * comparisons are mostly by reference.
+ */
+final class AttributeKey {
+  private final String domain;
+  private final KeyPropertyList beanProperties;
+  private final AttributePath attrKeys;
+  private final String attrName;
+  private final String attrDescription;
+  private final int hash;
+
+  AttributeKey(String domain, KeyPropertyList beanProperties, AttributePath attrKeys, String attrName, String attrDescription) {
+    this.domain = domain;
+    this.beanProperties = beanProperties;
+    this.attrKeys = attrKeys;
+    this.attrName = attrName;
+    this.attrDescription = attrDescription;
+    int h = domain.hashCode();
+    h = 31 * h + beanProperties.hashCode();
+    h = 31 * h + attrKeys.hashCode();
+    h = 31 * h + attrName.hashCode();
+    this.hash = h;
+  }
+
+  /**
+   * A key for a bean attribute as a whole, as tracked by UnusedAttributes and
+   * SlowAttributes.
+   *
+   * What those know of an attribute comes from its values passed to the
+   * receiver. Attributes that never are, such as nulls, and TabularData and
+   * arrays, whose rows and elements come and go, are always read.
+   */
+  static AttributeKey forAttribute(String domain, KeyPropertyList beanProperties, String attrName) {
+    return new AttributeKey(domain, beanProperties, AttributePath.EMPTY, attrName, null);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof AttributeKey)) {
+      return false;
+    }
+    AttributeKey other = (AttributeKey) o;
+    return hash == other.hash
+        && same(attrName, other.attrName)
+        && same(domain, other.domain)
+        && same(beanProperties, other.beanProperties)
+        && same(attrKeys, other.attrKeys)
+        && same(attrDescription, other.attrDescription);
+  }
+
+  private static boolean same(Object a, Object b) {
+    return a == b || (a != null && a.equals(b));
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+}
@@ -0,0 +1,68 @@
+package io.prometheus.jmx;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * The names of the CompositeData and TabularData attributes enclosing a value.
+ *
+ * Immutable, so all values of a composite share the path to it rather than
+ * each getting a copy.
+ */
+public final class AttributePath {
+  static final AttributePath EMPTY = new AttributePath(new String[0]);
+
+  private final String[] keys;
+  private String string;
+  private int hash;
+
+  private AttributePath(String[] keys) {
+    this.keys = keys;
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  public String get(int index) {
+    return keys[index];
+  }
+
+  AttributePath append(String key) {
+    String[] appended = Arrays.copyOf(keys, keys.length + 1);
+    appended[keys.length] = key;
+    return new AttributePath(appended);
+  }
+
+  public LinkedList<String> toList() {
+    return new LinkedList<String>(Arrays.asList(keys));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof AttributePath && Arrays.equals(keys, ((AttributePath) o).keys);
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      h = Arrays.hashCode(keys);
+      hash = h;
+    }
+    return h;
+  }
+
+  /**
+   * The same as toString() of the equivalent list, as rules are matched against it.
+   */
+  @Override
+  public String toString() {
+    String s = string;
+    if (s == null) {
+      s = Arrays.toString(keys);
+      string = s;
+    }
+    return s;
+  }
+}
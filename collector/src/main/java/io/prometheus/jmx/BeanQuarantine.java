@@ -0,0 +1,74 @@
+package io.prometheus.jmx;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.management.ObjectName;
+
+/**
+ * Beans that timed out, skipped for a number of scrapes so they don't slow down every scrape.
+ *
+ * Also the beans being read on a worker thread, which aren't read again until
+ * that read ends, so a bean that hangs holds up one thread rather than one per scrape.
+ */
+class BeanQuarantine implements JmxConnection.RegistrationListener {
+
+  private final Map<ObjectName, Integer> remainingScrapes = new HashMap<ObjectName, Integer>();
+  private final Set<ObjectName> reading = new HashSet<ObjectName>();
+
+  synchronized void add(ObjectName name, int scrapes) {
+    if (scrapes > 0) {
+      remainingScrapes.put(name, scrapes);
+    }
+  }
+
+  /**
+   * Whether the bean should be skipped in this scrape, using up one of its scrapes if so.
+   */
+  synchronized boolean skip(ObjectName name) {
+    Integer remaining = remainingScrapes.get(name);
+    if (remaining == null) {
+      return false;
+    }
+    if (remaining <= 1) {
+      remainingScrapes.remove(name);
+    } else {
+      remainingScrapes.put(name, remaining - 1);
+    }
+    return true;
+  }
+
+  /**
+   * Note that the bean is being read.
+   *
+   * @return false if an earlier read of it hasn't ended yet.
+   */
+  synchronized boolean startReading(ObjectName name) {
+    return reading.add(name);
+  }
+
+  synchronized void doneReading(ObjectName name) {
+    reading.remove(name);
+  }
+
+  synchronized boolean isQuarantined(ObjectName name) {
+    return remainingScrapes.containsKey(name);
+  }
+
+  synchronized boolean isReading(ObjectName name) {
+    return reading.contains(name);
+  }
+
+  public synchronized void registered(ObjectName name) {
+    // A new bean under the same name deserves a fresh chance.
+    remainingScrapes.remove(name);
+  }
+
+  public synchronized void unregistered(ObjectName name) {
+    remainingScrapes.remove(name);
+  }
+
+  public void registrationsLost() {
+  }
+}
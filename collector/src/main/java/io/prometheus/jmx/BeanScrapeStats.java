@@ -0,0 +1,86 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.management.ObjectName;
+
+/**
+ * How long reading each domain or bean takes, and how many of its attributes
+ * were read or failed. Owned by a collector rather than registered, so each
+ * target has its own, and started over when a config reload changes them.
+ *
+ * At most maxSeries domains or beans get their own series, the rest are
+ * added up under "other".
+ */
+class BeanScrapeStats {
+  static final String OTHER = "other";
+
+  private final boolean byBean;
+  private final int maxSeries;
+  private final Set<String> seen = new HashSet<String>();
+
+  private final Histogram duration;
+  private final Counter attributes;
+  private final Counter attributeFailures;
+
+  BeanScrapeStats(boolean byBean, int maxSeries) {
+    this.byBean = byBean;
+    this.maxSeries = maxSeries;
+    String label = byBean ? "bean" : "domain";
+    duration = Histogram.build()
+        .name("jmx_scrape_bean_duration_seconds")
+        .labelNames(label)
+        .help("Time taken to read the attributes of a bean, in seconds.").create();
+    attributes = Counter.build()
+        .name("jmx_scrape_bean_attributes_total")
+        .labelNames(label)
+        .help("Number of bean attributes read.").create();
+    attributeFailures = Counter.build()
+        .name("jmx_scrape_bean_attribute_failures_total")
+        .labelNames(label)
+        .help("Number of bean attributes that couldn't be read.").create();
+  }
+
+  /**
+   * Called from the threads reading beans.
+   */
+  void record(ObjectName bean, long durationNanos, int attributesRead, int attributesFailed) {
+    String label = label(byBean ? bean.toString() : bean.getDomain());
+    duration.labels(label).observe(durationNanos / 1.0E9);
+    attributes.labels(label).inc(attributesRead);
+    attributeFailures.labels(label).inc(attributesFailed);
+  }
+
+  private synchronized String label(String value) {
+    if (seen.contains(value)) {
+      return value;
+    }
+    if (seen.size() >= maxSeries) {
+      return OTHER;
+    }
+    seen.add(value);
+    return value;
+  }
+
+  List<MetricFamilySamples> collect() {
+    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+    mfsList.addAll(duration.collect());
+    mfsList.addAll(attributes.collect());
+    mfsList.addAll(attributeFailures.collect());
+    return mfsList;
+  }
+
+  List<MetricFamilySamples> describe() {
+    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+    mfsList.addAll(duration.describe());
+    mfsList.addAll(attributes.describe());
+    mfsList.addAll(attributeFailures.describe());
+    return mfsList;
+  }
+}
@@ -8,12 +8,11 @@ import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import java.io.File;
 import java.io.FileReader;
-import java.io.IOException;
 import java.util.*;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
-public class Config {
+public class Config implements Cloneable {
 
   private static final Logger LOGGER = Logger.getLogger(Config.class.getName());
 
@@ -25,9 +24,9 @@ public class Config {
       .name("jmx_config_reload_failure_total")
       .help("Number of times configuration have failed to be reloaded.").register();
 
+  // The file to reload the config from when it changes, or null.
   File configFile;
 
-  long lastUpdate = 0L;
   String host = "0.0.0.0";
   String consulHost;
   int consulPort = 8500;
@@ -38,20 +37,43 @@ public class Config {
   String username = "";
   String password = "";
   boolean ssl = false;
+  int mbeanInfoCacheTtlSeconds = 600;
+  int objectNameResyncIntervalSeconds = 600;
+  int scrapeConcurrency = 1;
+  int backgroundScrapeIntervalSeconds = 0;
+  int scrapeTimeoutSeconds = 0;
+  int beanTimeoutSeconds = 0;
+  int beanQuarantineScrapes = 0;
+  String beanStats;
+  int beanStatsMaxSeries = 100;
+  boolean ruleStats;
+  DuplicateSampleFilter.Policy duplicateSamples = DuplicateSampleFilter.Policy.FIRST;
   boolean lowercaseOutputName;
   boolean lowercaseOutputLabelNames;
   List<ObjectName> whitelistObjectNames = new ArrayList<ObjectName>();
   List<ObjectName> blacklistObjectNames = new ArrayList<ObjectName>();
+  List<AttributeFilter> attributeFilters = new ArrayList<AttributeFilter>();
+  boolean skipUnusedAttributes;
+  int arrayMaxElements = 0;
+  String arrayIndexLabel = "index";
   ArrayList<Rule> rules = new ArrayList<Rule>();
-  private boolean changed;
 
 
+  /**
+   * Load the config from a file. The collector reloads it when it changes.
+   */
   public static Config from(File configFile) {
     try {
       FileReader fr = new FileReader(configFile);
-      Map<String, Object> newYamlConfig = (Map<String, Object>) new Yaml().load(fr);
+      Map<String, Object> newYamlConfig;
+      try {
+        newYamlConfig = (Map<String, Object>) new Yaml().load(fr);
+      } finally {
+        fr.close();
+      }
       Config config = new Config();
       from(config, newYamlConfig);
+      config.configFile = configFile;
       return config;
     } catch (Exception ex) {
       throw new RuntimeException("Error on loading " + configFile.getAbsolutePath(), ex);
@@ -87,7 +109,7 @@ public class Config {
       if (yamlConfig.containsKey("jmxUrl")) {
         throw new IllegalArgumentException("At most one of hostPort and jmxUrl must be provided");
       }
-      cfg.jmxUrl = "service:jmx:rmi:///jndi/rmi://" + (String) yamlConfig.get("hostPort") + "/jmxrmi";
+      cfg.jmxUrl = jmxUrlForTarget((String) yamlConfig.get("hostPort"));
     } else if (yamlConfig.containsKey("jmxUrl")) {
       cfg.jmxUrl = (String) yamlConfig.get("jmxUrl");
     }
@@ -104,6 +126,65 @@ public class Config {
       cfg.ssl = (Boolean) yamlConfig.get("ssl");
     }
 
+    if (yamlConfig.containsKey("mbeanInfoCacheTtlSeconds")) {
+      cfg.mbeanInfoCacheTtlSeconds = (Integer) yamlConfig.get("mbeanInfoCacheTtlSeconds");
+    }
+
+    if (yamlConfig.containsKey("objectNameResyncIntervalSeconds")) {
+      cfg.objectNameResyncIntervalSeconds = (Integer) yamlConfig.get("objectNameResyncIntervalSeconds");
+    }
+
+    if (yamlConfig.containsKey("scrapeConcurrency")) {
+      cfg.scrapeConcurrency = (Integer) yamlConfig.get("scrapeConcurrency");
+      if (cfg.scrapeConcurrency < 1) {
+        throw new IllegalArgumentException("scrapeConcurrency must be at least 1");
+      }
+    }
+
+    if (yamlConfig.containsKey("backgroundScrapeIntervalSeconds")) {
+      cfg.backgroundScrapeIntervalSeconds = (Integer) yamlConfig.get("backgroundScrapeIntervalSeconds");
+    }
+
+    if (yamlConfig.containsKey("scrapeTimeoutSeconds")) {
+      cfg.scrapeTimeoutSeconds = (Integer) yamlConfig.get("scrapeTimeoutSeconds");
+    }
+
+    if (yamlConfig.containsKey("beanTimeoutSeconds")) {
+      cfg.beanTimeoutSeconds = (Integer) yamlConfig.get("beanTimeoutSeconds");
+    }
+
+    if (yamlConfig.containsKey("beanQuarantineScrapes")) {
+      cfg.beanQuarantineScrapes = (Integer) yamlConfig.get("beanQuarantineScrapes");
+    }
+
+    if (yamlConfig.containsKey("beanStats")) {
+      cfg.beanStats = (String) yamlConfig.get("beanStats");
+      if (!"domain".equals(cfg.beanStats) && !"bean".equals(cfg.beanStats)) {
+        throw new IllegalArgumentException("beanStats must be domain or bean");
+      }
+    }
+
+    if (yamlConfig.containsKey("beanStatsMaxSeries")) {
+      cfg.beanStatsMaxSeries = (Integer) yamlConfig.get("beanStatsMaxSeries");
+    }
+
+    if (yamlConfig.containsKey("ruleStats")) {
+      cfg.ruleStats = (Boolean) yamlConfig.get("ruleStats");
+    }
+
+    if (yamlConfig.containsKey("duplicateSamples")) {
+      String duplicateSamples = (String) yamlConfig.get("duplicateSamples");
+      if ("first".equals(duplicateSamples)) {
+        cfg.duplicateSamples = DuplicateSampleFilter.Policy.FIRST;
+      } else if ("sum".equals(duplicateSamples)) {
+        cfg.duplicateSamples = DuplicateSampleFilter.Policy.SUM;
+      } else if ("drop".equals(duplicateSamples)) {
+        cfg.duplicateSamples = DuplicateSampleFilter.Policy.DROP;
+      } else {
+        throw new IllegalArgumentException("duplicateSamples must be first, sum or drop");
+      }
+    }
+
     if (yamlConfig.containsKey("lowercaseOutputName")) {
       cfg.lowercaseOutputName = (Boolean) yamlConfig.get("lowercaseOutputName");
     }
@@ -128,6 +209,39 @@ public class Config {
       }
     }
 
+    if (yamlConfig.containsKey("attributeFilters")) {
+      List<Map<String, Object>> filters = (List<Map<String, Object>>) yamlConfig.get("attributeFilters");
+      for (Map<String, Object> yamlFilter : filters) {
+        if (!yamlFilter.containsKey("objectName")) {
+          throw new IllegalArgumentException("Attribute filters must have an objectName");
+        }
+        AttributeFilter filter = new AttributeFilter();
+        filter.objectName = new ObjectName((String) yamlFilter.get("objectName"));
+        if (yamlFilter.containsKey("includeAttributes")) {
+          filter.includeAttributes = new HashSet<String>((List<String>) yamlFilter.get("includeAttributes"));
+        }
+        if (yamlFilter.containsKey("excludeAttributes")) {
+          filter.excludeAttributes = new HashSet<String>((List<String>) yamlFilter.get("excludeAttributes"));
+        }
+        cfg.attributeFilters.add(filter);
+      }
+    }
+
+    if (yamlConfig.containsKey("skipUnusedAttributes")) {
+      cfg.skipUnusedAttributes = (Boolean) yamlConfig.get("skipUnusedAttributes");
+    }
+
+    if (yamlConfig.containsKey("arrayMaxElements")) {
+      cfg.arrayMaxElements = (Integer) yamlConfig.get("arrayMaxElements");
+    }
+
+    if (yamlConfig.containsKey("arrayIndexLabel")) {
+      cfg.arrayIndexLabel = (String) yamlConfig.get("arrayIndexLabel");
+      if (cfg.arrayIndexLabel == null || cfg.arrayIndexLabel.isEmpty()) {
+        throw new IllegalArgumentException("arrayIndexLabel must not be empty");
+      }
+    }
+
     if (yamlConfig.containsKey("rules")) {
       List<Map<String, Object>> configRules = (List<Map<String, Object>>) yamlConfig.get("rules");
       for (Map<String, Object> ruleObject : configRules) {
@@ -135,7 +249,21 @@ public class Config {
         Rule rule = new Rule();
         cfg.rules.add(rule);
         if (yamlRule.containsKey("pattern")) {
-          rule.pattern = Pattern.compile("^.*(?:" + (String) yamlRule.get("pattern") + ").*$");
+          String pattern = (String) yamlRule.get("pattern");
+          // The last group, after any of the pattern's own, is where the pattern ended.
+          rule.pattern = Pattern.compile("^.*(?:" + pattern + ")(.*)$");
+          // The value comes after the last ': ' of the input. A match is cached if the
+          // pattern ended before it, and a failed match if the pattern has no colon
+          // outside of (?: groups. Lookaheads can see past the end, so they turn both off.
+          // The cache setting below overrides this.
+          boolean lookahead = pattern.contains("(?=") || pattern.contains("(?!");
+          rule.cache = !lookahead && !pattern.replace("(?:", "(").contains(":");
+          rule.cacheIfMatchEndsBeforeValue = !lookahead;
+          rule.literal = requiredLiteral(pattern);
+        }
+        if (yamlRule.containsKey("cache")) {
+          rule.cache = (Boolean) yamlRule.get("cache");
+          rule.cacheIfMatchEndsBeforeValue = false;
         }
         if (yamlRule.containsKey("name")) {
           rule.name = (String) yamlRule.get("name");
@@ -160,6 +288,9 @@ public class Config {
         if (yamlRule.containsKey("help")) {
           rule.help = (String) yamlRule.get("help");
         }
+        if (yamlRule.containsKey("refreshEvery")) {
+          rule.refreshEvery = (Integer) yamlRule.get("refreshEvery");
+        }
         if (yamlRule.containsKey("labels")) {
           TreeMap labels = new TreeMap((Map<String, Object>) yamlRule.get("labels"));
           rule.labelNames = new ArrayList<String>();
@@ -177,6 +308,12 @@ public class Config {
         if (rule.name != null && rule.pattern == null) {
           throw new IllegalArgumentException("Must provide pattern, if name is given: " + yamlRule);
         }
+        if (rule.type == Collector.Type.SUMMARY && rule.name == null) {
+          throw new IllegalArgumentException("Must provide name, if type is SUMMARY: " + yamlRule);
+        }
+        if (rule.refreshEvery < 1) {
+          throw new IllegalArgumentException("refreshEvery must be at least 1: " + yamlRule);
+        }
       }
     } else {
       // Default to a single default rule.
@@ -185,40 +322,117 @@ public class Config {
 
   }
 
-  public void reloadConfig() {
-    try {
-      FileReader fr = new FileReader(configFile);
-
-      try {
-        Map<String, Object> newYamlConfig = (Map<String, Object>) new Yaml().load(fr);
-        from(this, newYamlConfig);
-        this.lastUpdate = configFile.lastModified();
-        configReloadSuccess.inc();
-      } catch (Exception e) {
-        LOGGER.severe("Configuration reload failed: " + e.toString());
-        configReloadFailure.inc();
-      } finally {
-        fr.close();
+  /**
+   * Whether the attribute of the bean is to be read, according to attributeFilters.
+   */
+  boolean readsAttribute(ObjectName bean, String attrName) {
+    for (AttributeFilter filter : attributeFilters) {
+      if (!filter.allows(bean, attrName)) {
+        return false;
       }
+    }
+    return true;
+  }
+
+  /**
+   * The JMX URL of the default RMI connector of a JVM at host:port.
+   */
+  static String jmxUrlForTarget(String hostPort) {
+    return "service:jmx:rmi:///jndi/rmi://" + hostPort + "/jmxrmi";
+  }
 
-    } catch (IOException e) {
-      LOGGER.severe("Configuration reload failed: " + e.toString());
-      configReloadFailure.inc();
+  /**
+   * A string that every input matched by the pattern contains, or null if none is found.
+   *
+   * This is the longest run of literal text in the part of the pattern
+   * before anything but literals and dots. Patterns with a top level
+   * alternative or flags get none.
+   */
+  static String requiredLiteral(String pattern) {
+    if (hasTopLevelAlternative(pattern) || pattern.matches("(?s).*\\(\\?[a-zA-Z-].*")) {
+      return null;
     }
+    String longest = "";
+    StringBuilder literal = new StringBuilder();
+    int i = pattern.startsWith("^") ? 1 : 0;
+    while (i < pattern.length()) {
+      char c = pattern.charAt(i);
+      int next = i + 1;
+      boolean any = false;
+      if (c == '\\') {
+        if (next >= pattern.length() || Character.isLetterOrDigit(pattern.charAt(next))) {
+          // A character class like \w, a back reference or \Q.
+          break;
+        }
+        c = pattern.charAt(next);
+        next++;
+      } else if (c == '.') {
+        any = true;
+      } else if ("^$*+?()[]{}|".indexOf(c) >= 0) {
+        break;
+      }
+      if (next < pattern.length() && "*?{".indexOf(pattern.charAt(next)) >= 0) {
+        // The character is optional, so what came before is all that's certain.
+        break;
+      }
+      if (any || (next < pattern.length() && pattern.charAt(next) == '+')) {
+        // The text continues after any character, or more of the same one.
+        if (!any) {
+          literal.append(c);
+          next++;
+        }
+        if (literal.length() > longest.length()) {
+          longest = literal.toString();
+        }
+        literal.setLength(0);
+      } else {
+        literal.append(c);
+      }
+      i = next;
+    }
+    if (literal.length() > longest.length()) {
+      longest = literal.toString();
+    }
+    return longest.length() == 0 ? null : longest;
   }
 
-  public boolean isChanged() {
-    if (configFile != null) {
-      long mtime = configFile.lastModified();
-      if (mtime > this.lastUpdate) {
+  private static boolean hasTopLevelAlternative(String pattern) {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        if (c == ']') {
+          inClass = false;
+        }
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
         return true;
       }
     }
     return false;
   }
 
-  public void reload() {
-
+  /**
+   * A copy of this config scraping another JMX URL. The rules and object name lists are shared, not copied.
+   */
+  Config forJmxUrl(String jmxUrl) {
+    try {
+      Config copy = (Config) clone();
+      copy.jmxUrl = jmxUrl;
+      // Reloading is up to whoever owns the original.
+      copy.configFile = null;
+      return copy;
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(e);
+    }
   }
 
 }
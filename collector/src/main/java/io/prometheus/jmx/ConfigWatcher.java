@@ -0,0 +1,152 @@
+package io.prometheus.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Loads the config file again whenever it changes, on a thread of its own
+ * so that scrapes never look at the file.
+ *
+ * The directory is watched rather than the file, as editors and config
+ * management tend to replace the file instead of writing to it. Other
+ * entries of the directory changing also count when the file now resolves
+ * to a different real path, which is how a Kubernetes ConfigMap volume
+ * updates: it swaps the ..data symlink that the file links through. Changes
+ * are only picked up once the directory has been quiet for a moment, so a
+ * file being written isn't loaded half way through. A config that fails to
+ * load is logged and counted, and the last good one stays in use.
+ */
+class ConfigWatcher {
+  private static final Logger LOGGER = Logger.getLogger(ConfigWatcher.class.getName());
+
+  // How long the directory has to be quiet before the file is loaded.
+  static final long SETTLE_MILLIS = 200;
+
+  interface Listener {
+    void configChanged(Config config);
+  }
+
+  private final File configFile;
+  private final Listener listener;
+  private final long settleMillis;
+  private final WatchService watchService;
+  // What the file resolved to when last loaded, only used by the thread processing changes.
+  private Path realPath;
+
+  /**
+   * Watch the file, without processing any changes until {@link #processChanges} is called.
+   *
+   * @param settleMillis how long the directory has to be quiet before the file is loaded.
+   */
+  ConfigWatcher(File configFile, Listener listener, long settleMillis) throws IOException {
+    this.configFile = configFile.getAbsoluteFile();
+    this.listener = listener;
+    this.settleMillis = settleMillis;
+    this.realPath = realPath();
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.configFile.getParentFile().toPath().register(watchService,
+        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+  }
+
+  /**
+   * Start watching the file, or return null if it can't be watched.
+   */
+  static ConfigWatcher start(File configFile, Listener listener) {
+    final ConfigWatcher watcher;
+    try {
+      watcher = new ConfigWatcher(configFile, listener, SETTLE_MILLIS);
+    } catch (IOException e) {
+      LOGGER.warning("Not watching " + configFile + " for changes: " + e);
+      return null;
+    }
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        watcher.run();
+      }
+    }, "jmx-collector-config-watcher");
+    thread.setDaemon(true);
+    thread.start();
+    return watcher;
+  }
+
+  void stop() {
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      // Nothing more to watch either way.
+    }
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        processChanges();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException e) {
+      // Stopped.
+    }
+  }
+
+  /**
+   * Wait for changes to the directory, and once it's quiet load the file if it changed.
+   *
+   * @return whether the file changed, whether or not it loaded.
+   */
+  boolean processChanges() throws InterruptedException {
+    Path fileName = configFile.toPath().getFileName();
+    boolean changed = false;
+    WatchKey key = watchService.take();
+    while (key != null) {
+      for (WatchEvent<?> event : key.pollEvents()) {
+        changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context());
+      }
+      key.reset();
+      key = watchService.poll(settleMillis, TimeUnit.MILLISECONDS);
+    }
+    Path newRealPath = realPath();
+    if (newRealPath != null && !newRealPath.equals(realPath)) {
+      changed = true;
+    }
+    if (changed) {
+      realPath = newRealPath;
+      reload();
+    }
+    return changed;
+  }
+
+  /**
+   * The file with all symlinks resolved, or null if it doesn't exist.
+   */
+  private Path realPath() {
+    try {
+      return configFile.toPath().toRealPath();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private void reload() {
+    Config config;
+    try {
+      config = Config.from(configFile);
+    } catch (RuntimeException e) {
+      LOGGER.severe("Configuration reload failed: " + e + (e.getCause() != null ? ": " + e.getCause() : ""));
+      Config.configReloadFailure.inc();
+      return;
+    }
+    LOGGER.fine("Configuration file changed, reloaded " + configFile);
+    listener.configChanged(config);
+    Config.configReloadSuccess.inc();
+  }
+}
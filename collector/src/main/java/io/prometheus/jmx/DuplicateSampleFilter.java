@@ -0,0 +1,178 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.Type;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes samples on to another sink, dealing with samples that have the same
+ * name and labels as an earlier one of the scrape, which Prometheus would
+ * reject. Depending on the policy the first sample is kept, the values are
+ * added up, or all of them are dropped.
+ *
+ * Each sample name has its own open addressing table of label sets, found by
+ * a hash of the label values and compared by the lists themselves, which for
+ * cached rule results are the same instances every time. Nothing is
+ * allocated per sample, other than when a table grows.
+ *
+ * With the first policy samples are passed on as they come. The others have
+ * to see every sample of a series first, so pass them on in flush().
+ */
+class DuplicateSampleFilter implements SampleSink {
+  enum Policy {
+    FIRST, SUM, DROP
+  }
+
+  private final SampleSink sink;
+  private final Policy policy;
+  private final Map<String, Series> series = new HashMap<String, Series>();
+  private int duplicates;
+
+  DuplicateSampleFilter(SampleSink sink, Policy policy) {
+    this.sink = sink;
+    this.policy = policy;
+  }
+
+  public void add(String familyName, Type type, String help, String sampleName, List<String> labelNames, List<String> labelValues, double value) {
+    Series s = series.get(sampleName);
+    if (s == null) {
+      s = new Series(familyName, type, help, sampleName);
+      series.put(sampleName, s);
+    }
+    int hash = hash(labelValues);
+    int index = s.find(hash, labelNames, labelValues);
+    if (index >= 0) {
+      duplicates++;
+      s.counts[index]++;
+      s.sampleValues[index] += value;
+      return;
+    }
+    s.add(hash, labelNames, labelValues, value);
+    if (policy == Policy.FIRST) {
+      sink.add(familyName, type, help, sampleName, labelNames, labelValues, value);
+    }
+  }
+
+  /**
+   * Pass on the samples held back by the sum and drop policies.
+   */
+  void flush() {
+    if (policy == Policy.FIRST) {
+      return;
+    }
+    for (Series s : series.values()) {
+      for (int i = 0; i < s.size; i++) {
+        if (policy == Policy.DROP && s.counts[i] > 1) {
+          continue;
+        }
+        sink.add(s.familyName, s.type, s.help, s.sampleName, s.labelNames(i), s.labelValues(i), s.sampleValues[i]);
+      }
+    }
+    series.clear();
+  }
+
+  /**
+   * Number of samples that had the same name and labels as an earlier one.
+   */
+  int getDuplicates() {
+    return duplicates;
+  }
+
+  private static int hash(List<String> labelValues) {
+    int h = 1;
+    for (int i = 0; i < labelValues.size(); i++) {
+      h = 31 * h + labelValues.get(i).hashCode();
+    }
+    return h;
+  }
+
+  private static boolean same(List<String> a, List<String> b) {
+    return a == b || a.equals(b);
+  }
+
+  /**
+   * The label sets seen for one sample name, in the order they came in.
+   */
+  private static class Series {
+    final String familyName;
+    final Type type;
+    final String help;
+    final String sampleName;
+
+    int size;
+    // Index + 1 of the label set in each slot, 0 for an empty slot. A power of two, and
+    // at least twice the number of label sets so that probes stay short.
+    int[] slots = new int[8];
+    int[] hashes = new int[4];
+    Object[] labelNames = new Object[4];
+    Object[] labelValues = new Object[4];
+    double[] sampleValues = new double[4];
+    int[] counts = new int[4];
+
+    Series(String familyName, Type type, String help, String sampleName) {
+      this.familyName = familyName;
+      this.type = type;
+      this.help = help;
+      this.sampleName = sampleName;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> labelNames(int index) {
+      return (List<String>) labelNames[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> labelValues(int index) {
+      return (List<String>) labelValues[index];
+    }
+
+    int find(int hash, List<String> names, List<String> values) {
+      int mask = slots.length - 1;
+      for (int slot = spread(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+        int index = slots[slot] - 1;
+        if (hashes[index] == hash && same(labelValues(index), values) && same(labelNames(index), names)) {
+          return index;
+        }
+      }
+      return -1;
+    }
+
+    void add(int hash, List<String> names, List<String> values, double value) {
+      if (size == hashes.length) {
+        int capacity = size * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        labelNames = Arrays.copyOf(labelNames, capacity);
+        labelValues = Arrays.copyOf(labelValues, capacity);
+        sampleValues = Arrays.copyOf(sampleValues, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        slots = new int[capacity * 2];
+        for (int i = 0; i < size; i++) {
+          insert(i);
+        }
+      }
+      hashes[size] = hash;
+      labelNames[size] = names;
+      labelValues[size] = values;
+      sampleValues[size] = value;
+      counts[size] = 1;
+      insert(size);
+      size++;
+    }
+
+    private void insert(int index) {
+      int mask = slots.length - 1;
+      int slot = spread(hashes[index]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = index + 1;
+    }
+
+    private static int spread(int h) {
+      return h ^ (h >>> 16);
+    }
+  }
+}
@@ -5,25 +5,25 @@ import io.prometheus.client.Counter;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.File;
-import java.io.FileReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.management.MalformedObjectNameException;
-import javax.management.ObjectName;
-
-import org.yaml.snakeyaml.Yaml;
 
 import static java.lang.String.format;
 
@@ -32,14 +32,32 @@ public class JmxCollector extends Collector implements Collector.Describable {
 
   private static final Logger LOGGER = Logger.getLogger(JmxCollector.class.getName());
 
-  private Config config;
+  private volatile LoadedConfig loaded;
 
   private long createTimeNanoSecs = System.nanoTime();
 
-  private static final Pattern snakeCasePattern = Pattern.compile("([a-z0-9])([A-Z])");
+  private final NameCache nameCache = new NameCache(100000);
+  // Per collector rather than registered, so targets of the multi-target mode don't share series.
+  private final Counter beanTimeouts = JmxScraper.newBeanTimeoutCounter();
+  private final AtomicLong scrapeCount = new AtomicLong();
+
+  private ScheduledExecutorService backgroundScraper;
+  private ScheduledFuture<?> backgroundScrapes;
+  private volatile boolean closed;
+  private volatile Snapshot snapshot;
+  private final ConfigWatcher configWatcher;
 
   public JmxCollector(Config config) throws IOException, MalformedObjectNameException {
-    this.config = config;
+    this.loaded = new LoadedConfig(config, null);
+    if (config.configFile != null) {
+      configWatcher = ConfigWatcher.start(config.configFile, new ConfigWatcher.Listener() {
+        public void configChanged(Config config) {
+          JmxCollector.this.configChanged(config);
+        }
+      });
+    } else {
+      configWatcher = null;
+    }
   }
 
   public JmxCollector(String configString) throws IOException, MalformedObjectNameException {
@@ -47,228 +65,679 @@ public class JmxCollector extends Collector implements Collector.Describable {
   }
 
 
-  class Receiver implements JmxScraper.MBeanReceiver {
-    Map<String, MetricFamilySamples> metricFamilySamplesMap =
-        new HashMap<String, MetricFamilySamples>();
+  /**
+   * A config ready to scrape with, and the caches of what its rules make of
+   * the beans. Replaced as a whole when the config is reloaded, so a scrape
+   * uses either the old rules and caches or the new ones, never a mix.
+   */
+  private static class LoadedConfig {
+    final Config config;
+    final List<Rule> rules;
+    final boolean slowRules;
+    final MatchedRulesCache matchedRulesCache = new MatchedRulesCache();
+    final UnusedAttributes unusedAttributes = new UnusedAttributes();
+    final SlowAttributes slowAttributes = new SlowAttributes();
+    final RuleStats ruleStats;
+    final BeanScrapeStats beanStats;
+    // How many scrapes an attribute can go unread for and keep its cached rule results.
+    final int matchedRulesCacheScrapes;
+    // Per config, so a request after a reload never shares a scrape with the old rules.
+    final SingleFlight<TextFormatBuffer> scrapes = new SingleFlight<TextFormatBuffer>();
+
+    /**
+     * @param previous the config being replaced, if any, whose bean stats are kept if they're set up the same.
+     */
+    LoadedConfig(Config config, LoadedConfig previous) {
+      this.config = config;
+      List<Rule> rules = new ArrayList<Rule>(config.rules);
+      if (rules.isEmpty()) {
+        rules.add(new Rule());
+      }
+      this.rules = Collections.unmodifiableList(rules);
+      boolean slow = false;
+      int maxRefreshEvery = 1;
+      for (Rule rule : rules) {
+        slow |= rule.refreshEvery > 1;
+        maxRefreshEvery = Math.max(maxRefreshEvery, rule.refreshEvery);
+      }
+      this.slowRules = slow;
+      // Attributes of slow rules are read every refreshEvery scrapes. A bean that timed out
+      // misses that scrape and the ones it's quarantined for. Keep their results across both.
+      this.matchedRulesCacheScrapes = Math.max(maxRefreshEvery, config.beanQuarantineScrapes + 1) + 1;
+      this.ruleStats = config.ruleStats ? new RuleStats(this.rules) : null;
+      if (config.beanStats == null) {
+        this.beanStats = null;
+      } else if (previous != null && previous.beanStats != null && config.beanStats.equals(previous.config.beanStats)
+          && config.beanStatsMaxSeries == previous.config.beanStatsMaxSeries) {
+        this.beanStats = previous.beanStats;
+      } else {
+        this.beanStats = new BeanScrapeStats("bean".equals(config.beanStats), config.beanStatsMaxSeries);
+      }
+    }
+  }
 
-    private static final char SEP = '_';
+  /**
+   * The result of a background scrape.
+   */
+  private static class Snapshot {
+    final TextFormatBuffer buffer;
+    final long createdNanos = System.nanoTime();
 
-    private final Pattern unsafeChars = Pattern.compile("[^a-zA-Z0-9:_]");
-    private final Pattern multipleUnderscores = Pattern.compile("__+");
+    Snapshot(TextFormatBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
 
-    // [] and () are special in regexes, so swtich to <>.
-    private String angleBrackets(String s) {
-      return "<" + s.substring(1, s.length() - 1) + ">";
+  class Receiver implements JmxScraper.BeanValueReceiver, JmxScraper.AttributeSkipper {
+    private final DuplicateSampleFilter sink;
+    private final long scrape = scrapeCount.incrementAndGet();
+    private final Config config;
+    private final List<Rule> rules;
+    private final boolean skipUnusedAttributes;
+    private final boolean slowRules;
+    private final MatchedRulesCache matchedRulesCache;
+    private final UnusedAttributes unusedAttributes;
+    private final SlowAttributes slowAttributes;
+    private final RuleStats ruleStats;
+    private final Map<List<Object>, PendingSum> pendingSums = new HashMap<List<Object>, PendingSum>();
+
+    Receiver(SampleSink sink) {
+      this(sink, loaded);
     }
 
-    private String safeName(String s) {
-      // Change invalid chars to underscore, and merge underscores.
-      return multipleUnderscores.matcher(unsafeChars.matcher(s).replaceAll("_")).replaceAll("_");
+    private Receiver(SampleSink sink, LoadedConfig loaded) {
+      this.sink = new DuplicateSampleFilter(sink, loaded.config.duplicateSamples);
+      this.config = loaded.config;
+      this.rules = loaded.rules;
+      this.skipUnusedAttributes = loaded.config.skipUnusedAttributes;
+      this.slowRules = loaded.slowRules;
+      this.matchedRulesCache = loaded.matchedRulesCache;
+      this.unusedAttributes = loaded.unusedAttributes;
+      this.slowAttributes = loaded.slowAttributes;
+      this.ruleStats = loaded.ruleStats;
     }
 
-    void addSample(MetricFamilySamples.Sample sample, Type type, String help) {
-      MetricFamilySamples mfs = metricFamilySamplesMap.get(sample.name);
-      if (mfs == null) {
-        // JmxScraper.MBeanReceiver is only called from one thread,
-        // so there's no race here.
-        mfs = new MetricFamilySamples(sample.name, type, help, new ArrayList<MetricFamilySamples.Sample>());
-        metricFamilySamplesMap.put(sample.name, mfs);
+    public String skip(String domain, KeyPropertyList beanProperties, String attrName) {
+      if (skipUnusedAttributes && unusedAttributes.isUnused(domain, beanProperties, attrName)) {
+        return "not used by the rules";
+      }
+      if (slowRules && slowAttributes.skip(domain, beanProperties, attrName, scrape)) {
+        return "repeating the last value";
       }
-      mfs.samples.add(sample);
+      return null;
     }
 
-    private void defaultExport(
+    private static final char SEP = '_';
+
+    private String safeName(String s, boolean lowercase) {
+      return nameCache.safeName(s, lowercase);
+    }
+
+    /**
+     * Add the sample for a value. The mean of a summary is held on to until
+     * the count is known too, and the other way around, to work out the sum.
+     */
+    private void export(MatchedRule matchedRule, double value) {
+      MatchedRule.SummaryPart part = matchedRule.summaryPart;
+      if (part == MatchedRule.SummaryPart.COUNT || part == MatchedRule.SummaryPart.MEAN) {
+        List<Object> key = Arrays.<Object>asList(matchedRule.familyName, matchedRule.labelNames, matchedRule.labelValues);
+        PendingSum sum = pendingSums.get(key);
+        if (sum == null) {
+          sum = new PendingSum();
+          pendingSums.put(key, sum);
+        }
+        if (part == MatchedRule.SummaryPart.MEAN) {
+          sum.mean = matchedRule;
+          sum.meanValue = value;
+        } else {
+          sum.count = value;
+          sum.hasCount = true;
+        }
+        if (sum.mean != null && sum.hasCount) {
+          MatchedRule mean = sum.mean;
+          sink.add(mean.familyName, mean.type, mean.help, mean.name, mean.labelNames, mean.labelValues, sum.meanValue * sum.count);
+          pendingSums.remove(key);
+        }
+        if (part == MatchedRule.SummaryPart.MEAN) {
+          return;
+        }
+      }
+      sink.add(matchedRule.familyName, matchedRule.type, matchedRule.help, matchedRule.name,
+          matchedRule.labelNames, matchedRule.labelValues, value);
+    }
+
+    private MatchedRule defaultExport(
         String domain,
-        LinkedHashMap<String, String> beanProperties,
-        LinkedList<String> attrKeys,
+        KeyPropertyList beanProperties,
+        AttributePath attrKeys,
         String attrName,
-        String attrType,
         String help,
-        Object value,
-        Type type) {
+        Rule rule) {
       StringBuilder name = new StringBuilder();
       name.append(domain);
       if (beanProperties.size() > 0) {
         name.append(SEP);
-        name.append(beanProperties.values().iterator().next());
+        name.append(beanProperties.getValue(0));
       }
-      for (String k : attrKeys) {
+      for (int i = 0; i < attrKeys.size(); i++) {
         name.append(SEP);
-        name.append(k);
+        name.append(attrKeys.get(i));
       }
       name.append(SEP);
       name.append(attrName);
-      String fullname = safeName(name.toString());
-
-      if (config.lowercaseOutputName) {
-        fullname = fullname.toLowerCase();
-      }
+      String fullname = safeName(name.toString(), config.lowercaseOutputName);
 
       List<String> labelNames = new ArrayList<String>();
       List<String> labelValues = new ArrayList<String>();
-      if (beanProperties.size() > 1) {
-        Iterator<Map.Entry<String, String>> iter = beanProperties.entrySet().iterator();
-        // Skip the first one, it's been used in the name.
-        iter.next();
-        while (iter.hasNext()) {
-          Map.Entry<String, String> entry = iter.next();
-          String labelName = safeName(entry.getKey());
-          if (config.lowercaseOutputLabelNames) {
-            labelName = labelName.toLowerCase();
-          }
-          labelNames.add(labelName);
-          labelValues.add(entry.getValue());
-        }
+      // Skip the first one, it's been used in the name.
+      for (int i = 1; i < beanProperties.size(); i++) {
+        String labelName = safeName(beanProperties.getKey(i), config.lowercaseOutputLabelNames);
+        labelNames.add(labelName);
+        labelValues.add(beanProperties.getValue(i));
       }
 
-      addSample(new MetricFamilySamples.Sample(fullname, labelNames, labelValues, ((Number) value).doubleValue()),
-          type, help);
+      return new MatchedRule(rule, fullname, help, labelNames, labelValues, null);
     }
 
     public void recordBean(
         String domain,
-        LinkedHashMap<String, String> beanProperties,
-        LinkedList<String> attrKeys,
+        KeyPropertyList beanProperties,
+        AttributePath attrKeys,
         String attrName,
         String attrType,
         String attrDescription,
         Object beanValue) {
 
-      String beanName = domain + angleBrackets(beanProperties.toString()) + angleBrackets(attrKeys.toString());
-      // attrDescription tends not to be useful, so give the fully qualified name too.
-      String help = attrDescription + " (" + beanName + attrName + ")";
-      String attrNameSnakeCase = snakeCasePattern.matcher(attrName).replaceAll("$1_$2").toLowerCase();
-
-      List<Rule> rules = config.rules;
-      if (config.rules.size() == 0) {
-        rules = new ArrayList<Rule>();
-        rules.add(new Rule());
+      MatchedRulesCache.Entry cached = matchedRulesCache.get(domain, beanProperties, attrKeys, attrName, attrDescription, scrape);
+      String beanName = cached.beanName;
+      MatchedRule matchedRule = cached.matchedRule;
+      if (matchedRule != null && ruleStats != null && matchedRule.rule != null) {
+        ruleStats.get(matchedRule.rule).cacheHit();
       }
-      for (Rule rule : rules) {
-        Matcher matcher = null;
-        String matchName = beanName + (rule.attrNameSnakeCase ? attrNameSnakeCase : attrName);
-        if (rule.pattern != null) {
-          matcher = rule.pattern.matcher(matchName + ": " + beanValue);
-          if (!matcher.matches()) {
+      if (matchedRule == null) {
+        // Only cache the result if every rule tried doesn't depend on the value.
+        boolean cacheable = true;
+        matchedRule = MatchedRule.UNMATCHED;
+
+        String help = cached.help;
+        String attrNameSnakeCase = nameCache.snakeCase(attrName);
+
+        // The input without the value, and its length for groupsEndBefore, in both variants.
+        String matchName = beanName + attrName;
+        String snakeCaseMatchName = attrNameSnakeCase.equals(attrName) ? matchName : beanName + attrNameSnakeCase;
+        String input = null;
+        String snakeCaseInput = null;
+        for (Rule rule : rules) {
+          long start = ruleStats != null ? System.nanoTime() : 0;
+          Matcher matcher = null;
+          boolean matched = true;
+          if (rule.pattern != null) {
+            String ruleInput;
+            if (rule.attrNameSnakeCase) {
+              ruleInput = snakeCaseInput != null ? snakeCaseInput : (snakeCaseInput = snakeCaseMatchName + ": " + beanValue);
+            } else {
+              ruleInput = input != null ? input : (input = matchName + ": " + beanValue);
+            }
+            // Most rules are for other beans, a substring search rules them out much faster than the regex.
+            if (rule.literal != null && !ruleInput.contains(rule.literal)) {
+              matched = false;
+            } else {
+              matcher = rule.pattern.matcher(ruleInput);
+              matched = matcher.matches();
+            }
+          }
+          if (ruleStats != null) {
+            ruleStats.get(rule).evaluated(System.nanoTime() - start, matched);
+          }
+          if (!matched) {
+            cacheable &= rule.cache;
             continue;
           }
-        }
-
-        Number value;
-        if (rule.value != null && !rule.value.isEmpty()) {
-          String val = matcher.replaceAll(rule.value);
-
-          try {
-            beanValue = Double.valueOf(val);
-          } catch (NumberFormatException e) {
-            LOGGER.fine("Unable to parse configured value '" + val + "' to number for bean: " + beanName + attrName + ": " + beanValue);
-            return;
+          if (matcher != null) {
+            int matchNameLength = rule.attrNameSnakeCase ? snakeCaseMatchName.length() : matchName.length();
+            boolean ruleCache = rule.cacheIfMatchEndsBeforeValue ? matchEnd(matcher) <= matchNameLength : rule.cache;
+            cacheable &= ruleCache && groupsEndBefore(matcher, matchNameLength);
           }
+
+          matchedRule = applyRule(rule, matcher, domain, beanProperties, attrKeys,
+              rule.attrNameSnakeCase ? attrNameSnakeCase : attrName, help, input != null ? input : matchName + ": " + beanValue);
+          break;
         }
-        if (beanValue instanceof Number) {
-          value = ((Number) beanValue).doubleValue() * rule.valueFactor;
-        } else if (beanValue instanceof Boolean) {
-          value = (Boolean) beanValue ? 1 : 0;
-        } else {
-          LOGGER.fine("Ignoring unsupported bean: " + beanName + attrName + ": " + beanValue);
-          return;
+        if (cacheable) {
+          cached.matchedRule = matchedRule;
         }
+      }
 
-        // If there's no name provided, use default export format.
-        if (rule.name == null) {
-          defaultExport(domain, beanProperties, attrKeys, rule.attrNameSnakeCase ? attrNameSnakeCase : attrName, attrType, help, value, rule.type);
-          return;
-        }
+      // The result is cached exactly when it doesn't depend on the value. Rows of
+      // TabularData have extra properties, so they never count for the bean itself.
+      String beanAttrName = attrKeys.size() > 0 ? attrKeys.get(0) : attrName;
+      if (skipUnusedAttributes) {
+        boolean exportable = !matchedRule.isUnmatched() || cached.matchedRule == null;
+        unusedAttributes.record(domain, beanProperties, beanAttrName, exportable);
+      }
 
-        // Matcher is set below here due to validation in the constructor.
-        String name = safeName(matcher.replaceAll(rule.name));
-        if (name.isEmpty()) {
-          return;
+      if (matchedRule.isUnmatched()) {
+        // Counted here rather than when the rule is applied, so cached drops count too.
+        if (matchedRule.valueNotANumber && ruleStats != null) {
+          ruleStats.get(matchedRule.rule).valueNotANumber();
         }
-        if (config.lowercaseOutputName) {
-          name = name.toLowerCase();
+        recordSlow(domain, beanProperties, beanAttrName, cached, null, 0);
+        return;
+      }
+
+      Number value;
+      if (matchedRule.value != null) {
+        beanValue = matchedRule.value;
+      }
+      if (beanValue instanceof Number) {
+        value = ((Number) beanValue).doubleValue() * matchedRule.valueFactor;
+      } else if (beanValue instanceof Boolean) {
+        value = (Boolean) beanValue ? 1 : 0;
+      } else {
+        LOGGER.fine("Ignoring unsupported bean: " + beanName + attrName + ": " + beanValue);
+        if (ruleStats != null) {
+          ruleStats.get(matchedRule.rule).unsupportedType();
         }
+        recordSlow(domain, beanProperties, beanAttrName, cached, null, 0);
+        return;
+      }
+
+      // Add to samples.
+      LOGGER.fine("add metric sample: " + matchedRule.name + " " + matchedRule.labelNames + " " + matchedRule.labelValues + " " + value.doubleValue());
+      export(matchedRule, value.doubleValue());
+      recordSlow(domain, beanProperties, beanAttrName, cached, matchedRule, value.doubleValue());
+    }
+
+    /**
+     * Keep what was exported for an attribute, in case the following scrapes can repeat it.
+     */
+    private void recordSlow(String domain, KeyPropertyList beanProperties, String beanAttrName,
+                            MatchedRulesCache.Entry cached, MatchedRule exported, double value) {
+      if (!slowRules) {
+        return;
+      }
+      // A result that depends on the value has to be worked out from a fresh value every time.
+      int refreshEvery = cached.matchedRule == null ? 1 : cached.matchedRule.refreshEvery;
+      slowAttributes.record(domain, beanProperties, beanAttrName, scrape, refreshEvery, exported, value);
+    }
+
+    /**
+     * Pass on the samples held back to deal with duplicates.
+     *
+     * @return the number of duplicates.
+     */
+    int flush() {
+      sink.flush();
+      return sink.getDuplicates();
+    }
 
-        // Set the help.
-        if (rule.help != null) {
-          help = matcher.replaceAll(rule.help);
+    /**
+     * Add the samples of the attributes the scrape didn't read.
+     */
+    void repeatSkipped() {
+      if (!slowRules) {
+        return;
+      }
+      for (SlowAttributes.Sample sample : slowAttributes.finishScrape(scrape)) {
+        export(sample.matchedRule, sample.value);
+      }
+    }
+
+    /**
+     * Work out what a matching rule exports, apart from the scraped value.
+     */
+    private MatchedRule applyRule(
+        Rule rule,
+        Matcher matcher,
+        String domain,
+        KeyPropertyList beanProperties,
+        AttributePath attrKeys,
+        String attrName,
+        String help,
+        String fullName) {
+      Double value = null;
+      if (rule.value != null && !rule.value.isEmpty()) {
+        String val = matcher.replaceAll(rule.value);
+
+        try {
+          value = Double.valueOf(val);
+        } catch (NumberFormatException e) {
+          LOGGER.fine("Unable to parse configured value '" + val + "' to number for bean: " + fullName);
+          return MatchedRule.valueNotANumber(rule);
         }
+      }
 
-        // Set the labels.
-        ArrayList<String> labelNames = new ArrayList<String>();
-        ArrayList<String> labelValues = new ArrayList<String>();
-        if (rule.labelNames != null) {
-          for (int i = 0; i < rule.labelNames.size(); i++) {
-            final String unsafeLabelName = rule.labelNames.get(i);
-            final String labelValReplacement = rule.labelValues.get(i);
-            try {
-              String labelName = safeName(matcher.replaceAll(unsafeLabelName));
-              String labelValue = matcher.replaceAll(labelValReplacement);
-              if (config.lowercaseOutputLabelNames) {
-                labelName = labelName.toLowerCase();
-              }
-              if (!labelName.isEmpty() && !labelValue.isEmpty()) {
-                labelNames.add(labelName);
-                labelValues.add(labelValue);
-              }
-            } catch (Exception e) {
-              throw new RuntimeException(
-                  format("Matcher '%s' unable to use: '%s' value: '%s'", matcher, unsafeLabelName, labelValReplacement), e);
+      // If there's no name provided, use default export format.
+      if (rule.name == null) {
+        return defaultExport(domain, beanProperties, attrKeys, attrName, help, rule);
+      }
+
+      // Matcher is set below here due to validation in the constructor.
+      String name = safeName(matcher.replaceAll(rule.name), config.lowercaseOutputName);
+      if (name.isEmpty()) {
+        return MatchedRule.UNMATCHED;
+      }
+
+      // Set the help.
+      if (rule.help != null) {
+        help = matcher.replaceAll(rule.help);
+      }
+
+      // Set the labels.
+      ArrayList<String> labelNames = new ArrayList<String>();
+      ArrayList<String> labelValues = new ArrayList<String>();
+      if (rule.labelNames != null) {
+        for (int i = 0; i < rule.labelNames.size(); i++) {
+          final String unsafeLabelName = rule.labelNames.get(i);
+          final String labelValReplacement = rule.labelValues.get(i);
+          try {
+            String labelName = safeName(matcher.replaceAll(unsafeLabelName), config.lowercaseOutputLabelNames);
+            String labelValue = matcher.replaceAll(labelValReplacement);
+            if (!labelName.isEmpty() && !labelValue.isEmpty()) {
+              labelNames.add(labelName);
+              labelValues.add(labelValue);
             }
+          } catch (Exception e) {
+            throw new RuntimeException(
+                format("Matcher '%s' unable to use: '%s' value: '%s'", matcher, unsafeLabelName, labelValReplacement), e);
           }
         }
+      }
 
-        // Add to samples.
-        LOGGER.fine("add metric sample: " + name + " " + labelNames + " " + labelValues + " " + value.doubleValue());
-        addSample(new MetricFamilySamples.Sample(name, labelNames, labelValues, value.doubleValue()), rule.type, help);
-        return;
+      if (rule.type == Type.SUMMARY) {
+        return summaryPart(rule, name, help, labelNames, labelValues, value, attrName);
       }
+      return new MatchedRule(rule, name, help, labelNames, labelValues, value);
+    }
+
+    /**
+     * What a SUMMARY rule makes of an attribute of a Dropwizard (or Yammer) timer or
+     * histogram, going by the attribute name: quantiles from the percentiles, and
+     * _count and _sum from Count and Mean. The other attributes aren't exported.
+     */
+    private MatchedRule summaryPart(Rule rule, String name, String help, List<String> labelNames,
+                                    List<String> labelValues, Double value, String attrName) {
+      // Snake case or not, 99thPercentile or 99th_percentile.
+      String part = attrName.replace("_", "").toLowerCase(Locale.ROOT);
+      if (part.equals("count")) {
+        return new MatchedRule(rule, name, name + "_count", help, labelNames, labelValues, value, MatchedRule.SummaryPart.COUNT);
+      }
+      if (part.equals("mean")) {
+        return new MatchedRule(rule, name, name + "_sum", help, labelNames, labelValues, value, MatchedRule.SummaryPart.MEAN);
+      }
+      String digits = part.endsWith("thpercentile") ? part.substring(0, part.length() - "thpercentile".length()) : "";
+      if (digits.length() == 0 || digits.length() > 9) {
+        return MatchedRule.UNMATCHED;
+      }
+      for (int i = 0; i < digits.length(); i++) {
+        if (!Character.isDigit(digits.charAt(i))) {
+          return MatchedRule.UNMATCHED;
+        }
+      }
+      // 50 is 0.5, 999 is 0.999.
+      double quantile = Integer.parseInt(digits) / Math.pow(10, Math.max(2, digits.length()));
+      List<String> quantileNames = new ArrayList<String>(labelNames);
+      List<String> quantileValues = new ArrayList<String>(labelValues);
+      quantileNames.add("quantile");
+      quantileValues.add(Collector.doubleToGoString(quantile));
+      return new MatchedRule(rule, name, name, help, quantileNames, quantileValues, value, MatchedRule.SummaryPart.QUANTILE);
     }
 
   }
 
-  public List<MetricFamilySamples> collect() {
-    if (
-        config.isChanged()) {
-      LOGGER.fine("Configuration file changed, reloading...");
-      config.reload();
+  /**
+   * The mean and count of a summary, until both are known.
+   */
+  private static class PendingSum {
+    MatchedRule mean;
+    double meanValue;
+    double count;
+    boolean hasCount;
+  }
+
+  /**
+   * Whether all capture groups ended before the given position, i.e. none of
+   * them captured any of the value.
+   */
+  private static boolean groupsEndBefore(Matcher matcher, int position) {
+    // The last group is the one Config adds after the pattern.
+    for (int i = 1; i < matcher.groupCount(); i++) {
+      if (matcher.end(i) > position) {
+        return false;
+      }
     }
+    return true;
+  }
 
+  /**
+   * Where the pattern of a rule ended in the input, before what's after it.
+   */
+  private static int matchEnd(Matcher matcher) {
+    return matcher.start(matcher.groupCount());
+  }
 
-    Receiver receiver = new Receiver();
-    JmxScraper scraper = new JmxScraper(config.jmxUrl, config.username, config.password, config.ssl, config.whitelistObjectNames, config.blacklistObjectNames, receiver);
-    long start = System.nanoTime();
-    double error = 0;
+  public List<MetricFamilySamples> collect() {
+    return collectTextFormat().toMetricFamilySamples();
+  }
+
+  /**
+   * Scrape into a buffer that can be written in the text exposition format
+   * without building MetricFamilySamples. Concurrent calls share a scrape,
+   * whether they come from here or collect().
+   */
+  TextFormatBuffer collectTextFormat() {
+    Config config = loaded.config;
     if ((config.startDelaySeconds > 0) &&
-        ((start - createTimeNanoSecs) / 1000000000L < config.startDelaySeconds)) {
+        ((System.nanoTime() - createTimeNanoSecs) / 1000000000L < config.startDelaySeconds)) {
       throw new IllegalStateException("JMXCollector waiting for startDelaySeconds");
     }
+    if (config.backgroundScrapeIntervalSeconds > 0 && !closed) {
+      return collectSnapshot();
+    }
+    return collectNow();
+  }
+
+  /**
+   * Write the metrics of a scrape in the text exposition format, version 0.0.4.
+   */
+  public void writeTextFormat(Writer writer) throws IOException {
+    collectTextFormat().writeTo(writer);
+  }
+
+  /**
+   * Serve the latest background scrape, starting background scraping on first use.
+   */
+  private TextFormatBuffer collectSnapshot() {
+    startBackgroundScrapes();
+    Snapshot current = snapshot;
+    if (current == null) {
+      // Nothing scraped yet, so scrape now rather than serve nothing.
+      LoadedConfig scraped = loaded;
+      current = new Snapshot(collectNow(scraped));
+      publishSnapshot(scraped, current);
+    }
+
+    // The snapshot is shared, so its age goes into a buffer of this request's own.
+    TextFormatBuffer buffer = new TextFormatBuffer();
+    buffer.addAll(current.buffer);
+    List<String> noLabels = Collections.emptyList();
+    buffer.add("jmx_scrape_snapshot_age_seconds", Type.GAUGE, "Time since the background JMX scrape being served finished, in seconds.",
+        "jmx_scrape_snapshot_age_seconds", noLabels, noLabels, (System.nanoTime() - current.createdNanos) / 1.0E9);
+    return buffer;
+  }
+
+  /**
+   * Start scraping in the background at the interval of the current config,
+   * unless it's already running or the collector was closed.
+   */
+  private synchronized void startBackgroundScrapes() {
+    if (backgroundScrapes == null && !closed) {
+      // Any snapshot left from before background scraping was last stopped is stale.
+      snapshot = null;
+      long interval = loaded.config.backgroundScrapeIntervalSeconds;
+      scheduleBackgroundScrapes(interval, interval);
+    }
+  }
+
+  private void scheduleBackgroundScrapes(long initialDelay, long interval) {
+    if (backgroundScraper == null) {
+      backgroundScraper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "jmx-collector-background-scrape");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    backgroundScrapes = backgroundScraper.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          LoadedConfig scraped = loaded;
+          publishSnapshot(scraped, new Snapshot(collectNow(scraped)));
+        } catch (Throwable t) {
+          // Keep the schedule going, the next run may well succeed.
+          LOGGER.severe("Background JMX scrape failed: " + t);
+        }
+      }
+    }, initialDelay, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Serve the snapshot from now on, unless the config it was scraped with has
+   * been replaced or the collector closed in the meantime.
+   */
+  private synchronized void publishSnapshot(LoadedConfig scraped, Snapshot next) {
+    if (scraped == loaded && !closed) {
+      snapshot = next;
+    }
+  }
+
+  /**
+   * Switch to a reloaded config. Background scraping, if running, starts over
+   * at the new interval with a scrape using the new rules, or stops. Either
+   * way the snapshot of the old rules isn't served any more.
+   */
+  synchronized void configChanged(Config config) {
+    loaded = new LoadedConfig(config, loaded);
+    if (backgroundScrapes == null) {
+      return;
+    }
+    backgroundScrapes.cancel(false);
+    backgroundScrapes = null;
+    snapshot = null;
+    long interval = config.backgroundScrapeIntervalSeconds;
+    if (interval > 0) {
+      scheduleBackgroundScrapes(0, interval);
+    }
+  }
+
+  synchronized boolean isBackgroundScraping() {
+    return backgroundScrapes != null;
+  }
+
+  /**
+   * Stop background scraping and watching the config file. The collector
+   * can still be scraped, but only in the foreground.
+   */
+  public synchronized void close() {
+    closed = true;
+    if (backgroundScraper != null) {
+      backgroundScraper.shutdownNow();
+      backgroundScraper = null;
+      backgroundScrapes = null;
+    }
+    snapshot = null;
+    if (configWatcher != null) {
+      configWatcher.stop();
+    }
+  }
+
+  private TextFormatBuffer collectNow() {
+    return collectNow(loaded);
+  }
+
+  /**
+   * Scrape, or if another thread is already scraping with the same config wait for and share its result.
+   */
+  private TextFormatBuffer collectNow(final LoadedConfig loaded) {
+    return loaded.scrapes.run(new Callable<TextFormatBuffer>() {
+      public TextFormatBuffer call() {
+        TextFormatBuffer buffer = new TextFormatBuffer();
+        scrape(buffer, loaded);
+        return buffer;
+      }
+    });
+  }
+
+  private void scrape(SampleSink sink, LoadedConfig loaded) {
+    Config config = loaded.config;
+    Receiver receiver = new Receiver(sink, loaded);
+    BeanScrapeStats stats = loaded.beanStats;
+    if (config.skipUnusedAttributes) {
+      // Start over now and then, in case beans were replaced by ones with other attributes.
+      loaded.unusedAttributes.resetIfOlderThan(TimeUnit.SECONDS.toNanos(config.mbeanInfoCacheTtlSeconds));
+    }
+    JmxScraper scraper = new JmxScraper(config, receiver, JmxConnectionPool.DEFAULT, stats, receiver, beanTimeouts);
+    long start = System.nanoTime();
+    double error = 0;
     try {
       scraper.doScrape();
+      receiver.repeatSkipped();
+      loaded.matchedRulesCache.evictStaleEntries(receiver.scrape, loaded.matchedRulesCacheScrapes);
     } catch (Exception e) {
       error = 1;
       StringWriter sw = new StringWriter();
       e.printStackTrace(new PrintWriter(sw));
       LOGGER.severe("JMX scrape failed: " + sw.toString());
     }
-    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
-    mfsList.addAll(receiver.metricFamilySamplesMap.values());
-    List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
-    samples.add(new MetricFamilySamples.Sample(
-        "jmx_scrape_duration_seconds", new ArrayList<String>(), new ArrayList<String>(), (System.nanoTime() - start) / 1.0E9));
-    mfsList.add(new MetricFamilySamples("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.", samples));
-
-    samples = new ArrayList<MetricFamilySamples.Sample>();
-    samples.add(new MetricFamilySamples.Sample(
-        "jmx_scrape_error", new ArrayList<String>(), new ArrayList<String>(), error));
-    mfsList.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", samples));
-    return mfsList;
+    int duplicates = receiver.flush();
+    List<String> noLabels = Collections.emptyList();
+    sink.add("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.",
+        "jmx_scrape_duration_seconds", noLabels, noLabels, (System.nanoTime() - start) / 1.0E9);
+    sink.add("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.",
+        "jmx_scrape_error", noLabels, noLabels, error);
+    sink.add("jmx_scrape_round_trips", Type.GAUGE, "Number of requests made to the MBeanServer during this scrape.",
+        "jmx_scrape_round_trips", noLabels, noLabels, scraper.getRoundTrips());
+    sink.add("jmx_scrape_duplicate_samples", Type.GAUGE, "Number of samples in this scrape with the same name and labels as an earlier one.",
+        "jmx_scrape_duplicate_samples", noLabels, noLabels, duplicates);
+
+    addAll(sink, beanTimeouts.collect());
+    if (stats != null) {
+      addAll(sink, stats.collect());
+    }
+    if (loaded.ruleStats != null) {
+      addAll(sink, loaded.ruleStats.collect());
+    }
+  }
+
+  private static void addAll(SampleSink sink, List<MetricFamilySamples> mfsList) {
+    for (MetricFamilySamples mfs : mfsList) {
+      for (MetricFamilySamples.Sample sample : mfs.samples) {
+        sink.add(mfs.name, mfs.type, mfs.help, sample.name, sample.labelNames, sample.labelValues, sample.value);
+      }
+    }
   }
 
   public List<MetricFamilySamples> describe() {
+    LoadedConfig loaded = this.loaded;
+    Config config = loaded.config;
     List<MetricFamilySamples> sampleFamilies = new ArrayList<MetricFamilySamples>();
     sampleFamilies.add(new MetricFamilySamples("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
     sampleFamilies.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", new ArrayList<MetricFamilySamples.Sample>()));
+    sampleFamilies.add(new MetricFamilySamples("jmx_scrape_round_trips", Type.GAUGE, "Number of requests made to the MBeanServer during this scrape.", new ArrayList<MetricFamilySamples.Sample>()));
+    sampleFamilies.add(new MetricFamilySamples("jmx_scrape_duplicate_samples", Type.GAUGE, "Number of samples in this scrape with the same name and labels as an earlier one.", new ArrayList<MetricFamilySamples.Sample>()));
+    if (config.beanTimeoutSeconds > 0) {
+      sampleFamilies.addAll(beanTimeouts.describe());
+    }
+    if (loaded.beanStats != null) {
+      sampleFamilies.addAll(loaded.beanStats.describe());
+    }
+    if (loaded.ruleStats != null) {
+      sampleFamilies.addAll(loaded.ruleStats.describe());
+    }
+    if (config.backgroundScrapeIntervalSeconds > 0) {
+      sampleFamilies.add(new MetricFamilySamples("jmx_scrape_snapshot_age_seconds", Type.GAUGE, "Time since the background JMX scrape being served finished, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
+    }
     return sampleFamilies;
   }
 
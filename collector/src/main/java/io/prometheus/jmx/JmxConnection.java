@@ -0,0 +1,242 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+/**
+ * A JMX connection owned by a {@link JmxConnectionPool}.
+ *
+ * The local MBeanServer is represented by a connection without a connector,
+ * whose close only drops the subscription to registrations.
+ *
+ * State derived from the MBeanServer, such as cached MBeanInfo and bean names,
+ * lives here so it's dropped when the connection is replaced.
+ */
+class JmxConnection {
+  private static final Logger LOGGER = Logger.getLogger(JmxConnection.class.getName());
+
+  /**
+   * Receives MBean registration events from the MBeanServerDelegate.
+   */
+  interface RegistrationListener {
+    void registered(ObjectName name);
+    void unregistered(ObjectName name);
+    /**
+     * Notifications may have been lost, anything derived from them is suspect.
+     */
+    void registrationsLost();
+  }
+
+  private final JMXConnector connector;
+  private final MBeanServerConnection mbeanServerConnection;
+  private volatile boolean broken;
+  private volatile long lastUsedNanos = System.nanoTime();
+
+  private final List<RegistrationListener> registrationListeners = new CopyOnWriteArrayList<RegistrationListener>();
+  private boolean subscriptionAttempted;
+  private volatile boolean subscribed;
+  private MBeanInfoCache mbeanInfoCache;
+  private BeanQuarantine beanQuarantine;
+  private KeyPropertyListCache keyPropertyListCache;
+  private final Map<List<List<ObjectName>>, MBeanNameIndex> nameIndexes = new HashMap<List<List<ObjectName>>, MBeanNameIndex>();
+
+  private final NotificationListener delegateListener = new NotificationListener() {
+    public void handleNotification(Notification notification, Object handback) {
+      if (!(notification instanceof MBeanServerNotification)) {
+        return;
+      }
+      ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+      String type = notification.getType();
+      for (RegistrationListener listener : registrationListeners) {
+        if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(type)) {
+          listener.registered(name);
+        } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(type)) {
+          listener.unregistered(name);
+        }
+      }
+    }
+  };
+
+  private final NotificationListener connectionListener = new NotificationListener() {
+    public void handleNotification(Notification notification, Object handback) {
+      String type = notification.getType();
+      if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+        LOGGER.fine("JMX connection " + notification.getSource() + " reported " + type);
+        broken = true;
+      } else if (JMXConnectionNotification.NOTIFS_LOST.equals(type)) {
+        for (RegistrationListener listener : registrationListeners) {
+          listener.registrationsLost();
+        }
+      }
+    }
+  };
+
+  static JmxConnection local() {
+    return new JmxConnection(null, ManagementFactory.getPlatformMBeanServer());
+  }
+
+  static JmxConnection remote(JMXConnector connector) throws IOException {
+    JmxConnection connection = new JmxConnection(connector, connector.getMBeanServerConnection());
+    connector.addConnectionNotificationListener(connection.connectionListener, null, null);
+    return connection;
+  }
+
+  private JmxConnection(JMXConnector connector, MBeanServerConnection mbeanServerConnection) {
+    this.connector = connector;
+    this.mbeanServerConnection = mbeanServerConnection;
+  }
+
+  MBeanServerConnection getMBeanServerConnection() {
+    return mbeanServerConnection;
+  }
+
+  boolean isRemote() {
+    return connector != null;
+  }
+
+  /**
+   * Register for MBean registration events.
+   *
+   * @return false if the MBeanServer doesn't deliver them, in which case
+   *         the listener will never be called.
+   */
+  synchronized boolean addRegistrationListener(RegistrationListener listener) {
+    registrationListeners.add(listener);
+    if (!subscriptionAttempted) {
+      subscriptionAttempted = true;
+      try {
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+        mbeanServerConnection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, delegateListener, filter, null);
+        subscribed = true;
+      } catch (Exception e) {
+        LOGGER.fine("Unable to subscribe to MBean registrations: " + e);
+      }
+    }
+    return subscribed;
+  }
+
+  boolean receivesRegistrations() {
+    return subscribed;
+  }
+
+  synchronized MBeanInfoCache getMBeanInfoCache() {
+    if (mbeanInfoCache == null) {
+      mbeanInfoCache = new MBeanInfoCache();
+      addRegistrationListener(mbeanInfoCache);
+    }
+    return mbeanInfoCache;
+  }
+
+  synchronized BeanQuarantine getBeanQuarantine() {
+    if (beanQuarantine == null) {
+      beanQuarantine = new BeanQuarantine();
+      addRegistrationListener(beanQuarantine);
+    }
+    return beanQuarantine;
+  }
+
+  synchronized KeyPropertyListCache getKeyPropertyListCache() {
+    if (keyPropertyListCache == null) {
+      keyPropertyListCache = new KeyPropertyListCache(100000);
+      addRegistrationListener(keyPropertyListCache);
+    }
+    return keyPropertyListCache;
+  }
+
+  /**
+   * The index of bean names for a whitelist and blacklist, shared by all scrapes using the same lists.
+   *
+   * Indexes that haven't been used for a resync interval, such as those for
+   * lists that were changed by a config reload, are dropped.
+   */
+  synchronized MBeanNameIndex getNameIndex(List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
+                                           long resyncIntervalNanos) {
+    List<List<ObjectName>> key = new ArrayList<List<ObjectName>>(2);
+    key.add(new ArrayList<ObjectName>(whitelistObjectNames));
+    key.add(new ArrayList<ObjectName>(blacklistObjectNames));
+    long now = System.nanoTime();
+    Iterator<Map.Entry<List<List<ObjectName>>, MBeanNameIndex>> it = nameIndexes.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<List<List<ObjectName>>, MBeanNameIndex> entry = it.next();
+      if (!entry.getKey().equals(key) && now - entry.getValue().lastUsedNanos() > resyncIntervalNanos) {
+        it.remove();
+        registrationListeners.remove(entry.getValue());
+      }
+    }
+    MBeanNameIndex index = nameIndexes.get(key);
+    if (index == null) {
+      index = new MBeanNameIndex(this, whitelistObjectNames, blacklistObjectNames);
+      nameIndexes.put(key, index);
+    }
+    index.touch(now);
+    return index;
+  }
+
+  int nameIndexCount() {
+    return nameIndexes.size();
+  }
+
+  /**
+   * Marks the connection as unusable, so the pool replaces it on the next acquire.
+   */
+  void markBroken() {
+    broken = true;
+  }
+
+  boolean isBroken() {
+    return broken;
+  }
+
+  void touch() {
+    lastUsedNanos = System.nanoTime();
+  }
+
+  long idleNanos() {
+    return System.nanoTime() - lastUsedNanos;
+  }
+
+  void close() {
+    broken = true;
+    // The local MBeanServer outlives the connection, so the subscription has to go
+    // or it would keep the listeners and their caches.
+    if (subscribed) {
+      subscribed = false;
+      try {
+        mbeanServerConnection.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, delegateListener);
+      } catch (Exception e) {
+        // Closing the connector below drops the subscription anyway.
+      }
+    }
+    registrationListeners.clear();
+    if (connector == null) {
+      return;
+    }
+    try {
+      connector.removeConnectionNotificationListener(connectionListener);
+    } catch (Exception e) {
+      // The connector may already be gone, nothing to clean up.
+    }
+    try {
+      connector.close();
+    } catch (IOException e) {
+      LOGGER.fine("Closing JMX connection failed: " + e);
+    }
+  }
+}
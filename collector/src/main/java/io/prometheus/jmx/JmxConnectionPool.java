@@ -0,0 +1,242 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Summary;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import javax.management.remote.rmi.RMIConnectorServer;
+import javax.naming.Context;
+import javax.rmi.ssl.SslRMIClientSocketFactory;
+
+/**
+ * Keeps JMX connections open between scrapes, so a steady-state scrape
+ * doesn't pay for the JNDI lookup, RMI and SSL handshakes.
+ *
+ * Connections are keyed by url, credentials and ssl. A connection is replaced
+ * when its connector reports a failure, when a scrape marks it broken, or when
+ * it fails a health check after being idle. Connections that haven't been used
+ * for a while are closed, and their targets forgotten.
+ */
+public class JmxConnectionPool {
+  private static final Logger LOGGER = Logger.getLogger(JmxConnectionPool.class.getName());
+
+  static final long DEFAULT_HEALTH_CHECK_IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+  static final long DEFAULT_EVICTION_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  static final Summary connectDuration = Summary.build()
+      .name("jmx_connection_connect_duration_seconds")
+      .help("Time taken to establish remote JMX connections, in seconds.").register();
+
+  static final Counter reconnects = Counter.build()
+      .name("jmx_connection_reconnects_total")
+      .help("Number of times a pooled JMX connection has been re-established.").register();
+
+  static final Counter evictions = Counter.build()
+      .name("jmx_connection_evictions_total")
+      .help("Number of pooled JMX connections closed because they were idle.").register();
+
+  static final Gauge openConnections = Gauge.build()
+      .name("jmx_connection_pool_connections")
+      .help("Number of remote JMX connections currently held open.").register();
+
+  static final JmxConnectionPool DEFAULT = new JmxConnectionPool(DEFAULT_HEALTH_CHECK_IDLE_NANOS, DEFAULT_EVICTION_IDLE_NANOS);
+
+  private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+  private final long healthCheckIdleNanos;
+  private final long evictionIdleNanos;
+
+  JmxConnectionPool(long healthCheckIdleNanos, long evictionIdleNanos) {
+    this.healthCheckIdleNanos = healthCheckIdleNanos;
+    this.evictionIdleNanos = evictionIdleNanos;
+  }
+
+  /**
+   * Get an open connection for the target, connecting if needed.
+   *
+   * An empty jmxUrl refers to the local MBeanServer.
+   */
+  JmxConnection acquire(String jmxUrl, String username, String password, boolean ssl) throws IOException {
+    evictIdle();
+    Key key = new Key(jmxUrl, username, password, ssl);
+    while (true) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        Entry newEntry = new Entry();
+        entry = entries.putIfAbsent(key, newEntry);
+        if (entry == null) {
+          entry = newEntry;
+        }
+      }
+      // Lock per target, so a slow connect doesn't hold up other targets.
+      entry.lock.lock();
+      try {
+        if (entry.evicted) {
+          // Removed while we waited for it, start over with a new one.
+          continue;
+        }
+        JmxConnection connection = entry.connection;
+        if (connection != null && !connection.isBroken() && connection.isRemote()
+            && connection.idleNanos() > healthCheckIdleNanos && !isHealthy(connection)) {
+          connection.markBroken();
+        }
+        if (connection != null && connection.isBroken()) {
+          connection.close();
+          entry.connection = null;
+          if (connection.isRemote()) {
+            openConnections.dec();
+          }
+          reconnects.inc();
+          connection = null;
+        }
+        if (connection == null) {
+          connection = connect(key.jmxUrl, key.username, key.password, key.ssl);
+          entry.connection = connection;
+          if (connection.isRemote()) {
+            openConnections.inc();
+          }
+        }
+        connection.touch();
+        return connection;
+      } finally {
+        entry.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Return a connection after a scrape.
+   */
+  void release(JmxConnection connection) {
+    connection.touch();
+  }
+
+  /**
+   * Discard a connection that failed, it'll be replaced on the next acquire.
+   */
+  void invalidate(JmxConnection connection) {
+    connection.markBroken();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Close connections that have been idle for too long. Targets busy connecting
+   * or being checked are in use, and skipped rather than waited for.
+   */
+  private void evictIdle() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (!entry.lock.tryLock()) {
+        continue;
+      }
+      try {
+        JmxConnection connection = entry.connection;
+        if (connection != null && connection.isRemote() && connection.idleNanos() > evictionIdleNanos) {
+          connection.close();
+          entry.connection = null;
+          entry.evicted = true;
+          it.remove();
+          openConnections.dec();
+          evictions.inc();
+        }
+      } finally {
+        entry.lock.unlock();
+      }
+    }
+  }
+
+  private static boolean isHealthy(JmxConnection connection) {
+    try {
+      connection.getMBeanServerConnection().getMBeanCount();
+      return true;
+    } catch (IOException e) {
+      LOGGER.fine("JMX connection health check failed: " + e);
+      return false;
+    }
+  }
+
+  /**
+   * Open a connection, the arguments as normalized by acquire.
+   */
+  JmxConnection connect(String jmxUrl, String username, String password, boolean ssl) throws IOException {
+    if (jmxUrl.isEmpty()) {
+      return JmxConnection.local();
+    }
+    Map<String, Object> environment = new HashMap<String, Object>();
+    if (username.length() != 0 && password.length() != 0) {
+      String[] credent = new String[] {username, password};
+      environment.put(javax.management.remote.JMXConnector.CREDENTIALS, credent);
+    }
+    if (ssl) {
+      environment.put(Context.SECURITY_PROTOCOL, "ssl");
+      SslRMIClientSocketFactory clientSocketFactory = new SslRMIClientSocketFactory();
+      environment.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, clientSocketFactory);
+      environment.put("com.sun.jndi.rmi.factory.socket", clientSocketFactory);
+    }
+
+    Summary.Timer timer = connectDuration.startTimer();
+    try {
+      JMXConnector jmxc = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl), environment);
+      try {
+        return JmxConnection.remote(jmxc);
+      } catch (IOException e) {
+        jmxc.close();
+        throw e;
+      }
+    } finally {
+      timer.observeDuration();
+    }
+  }
+
+  private static class Entry {
+    final ReentrantLock lock = new ReentrantLock();
+    JmxConnection connection;
+    // Set once the entry is removed from the map, so it isn't reused.
+    boolean evicted;
+  }
+
+  private static class Key {
+    final String jmxUrl;
+    final String username;
+    final String password;
+    final boolean ssl;
+
+    Key(String jmxUrl, String username, String password, boolean ssl) {
+      this.jmxUrl = jmxUrl == null ? "" : jmxUrl;
+      this.username = username == null ? "" : username;
+      this.password = password == null ? "" : password;
+      this.ssl = ssl;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return jmxUrl.equals(other.jmxUrl) && username.equals(other.username)
+          && password.equals(other.password) && ssl == other.ssl;
+    }
+
+    public int hashCode() {
+      int result = jmxUrl.hashCode();
+      result = 31 * result + username.hashCode();
+      result = 31 * result + password.hashCode();
+      return 31 * result + (ssl ? 1 : 0);
+    }
+  }
+}
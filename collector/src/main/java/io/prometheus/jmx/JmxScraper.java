@@ -1,19 +1,35 @@
 package io.prometheus.jmx;
 
+import io.prometheus.client.Counter;
+
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.JMException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanInfo;
@@ -24,34 +40,10 @@ import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeType;
 import javax.management.openmbean.TabularData;
 import javax.management.openmbean.TabularType;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
-import javax.management.remote.rmi.RMIConnectorServer;
-import javax.naming.Context;
-import javax.rmi.ssl.SslRMIClientSocketFactory;
 
 
 public class JmxScraper {
     private static final Logger logger = Logger.getLogger(JmxScraper.class.getName());;
-    private static final Pattern PROPERTY_PATTERN = Pattern.compile(
-            "([^,=:\\*\\?]+)" + // Name - non-empty, anything but comma, equals, colon, star, or question mark
-            "=" +  // Equals
-            "(" + // Either
-                "\"" + // Quoted
-                    "(?:" + // A possibly empty sequence of
-                    "[^\\\\\"]" + // Anything but backslash or quote
-                    "|\\\\\\\\" + // or an escaped backslash
-                    "|\\\\n" + // or an escaped newline
-                    "|\\\\\"" + // or an escaped quote
-                    "|\\\\\\?" + // or an escaped question mark
-                    "|\\\\\\*" + // or an escaped star
-                    ")*" +
-                "\"" +
-            "|" + // Or
-                "[^,=:\"]*" + // Unquoted - can be empty, anything but comma, equals, colon, or quote
-            ")");
-
     public static interface MBeanReceiver {
         void recordBean(
             String domain,
@@ -63,106 +55,517 @@ public class JmxScraper {
             Object value);
     }
 
-    private MBeanReceiver receiver;
-    private String jmxUrl;
-    private String username;
-    private String password;
-    private boolean ssl;
-    private List<ObjectName> whitelistObjectNames, blacklistObjectNames;
+    /**
+     * Receives the values of a scrape, like {@link MBeanReceiver}.
+     *
+     * The properties and attribute path are immutable and shared by many
+     * calls, so they can be kept without copying.
+     */
+    public static interface BeanValueReceiver {
+        void recordBean(
+            String domain,
+            KeyPropertyList beanProperties,
+            AttributePath attrKeys,
+            String attrName,
+            String attrType,
+            String attrDescription,
+            Object value);
+    }
+
+    /**
+     * Attributes that don't need to be read, because what the rules make of them is already known.
+     * Called concurrently when beans are scraped in parallel.
+     */
+    static interface AttributeSkipper {
+        /**
+         * @return why the attribute isn't read, for the log, or null to read it.
+         */
+        String skip(String domain, KeyPropertyList beanProperties, String attrName);
+    }
+
+    // Workers shared by all scrapes. Reads that hang are left behind on their thread, so the
+    // number of threads is capped, and beans still being read aren't read again.
+    static final int MAX_WORKERS = 256;
+    private static final ExecutorService workers = new ThreadPoolExecutor(0, MAX_WORKERS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "jmx-scraper-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A counter of the beans given up on, to be kept by a collector and included in its scrapes.
+     */
+    static Counter newBeanTimeoutCounter() {
+        return Counter.build()
+                .name("jmx_scrape_timeouts_total")
+                .labelNames("bean")
+                .help("Number of times reading a bean was abandoned because it took longer than beanTimeoutSeconds.").create();
+    }
+
+    // Stands in for a timeout that isn't configured, small enough to add to System.nanoTime().
+    private static final long NO_TIMEOUT = Long.MAX_VALUE / 2;
+
+    private BeanValueReceiver receiver;
+    private Config config;
+    private JmxConnectionPool connectionPool;
+    private BeanScrapeStats beanStats;
+    private AttributeSkipper skipper;
+    private Counter beanTimeouts;
+    private final AtomicLong roundTrips = new AtomicLong();
 
     public JmxScraper(String jmxUrl, String username, String password, boolean ssl, List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames, MBeanReceiver receiver) {
-        this.jmxUrl = jmxUrl;
+        this(scrapeConfig(jmxUrl, username, password, ssl, whitelistObjectNames, blacklistObjectNames), new MBeanReceiverAdapter(receiver), JmxConnectionPool.DEFAULT);
+    }
+
+    public JmxScraper(String jmxUrl, String username, String password, boolean ssl, List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames, BeanValueReceiver receiver) {
+        this(scrapeConfig(jmxUrl, username, password, ssl, whitelistObjectNames, blacklistObjectNames), receiver, JmxConnectionPool.DEFAULT);
+    }
+
+    JmxScraper(Config config, BeanValueReceiver receiver, JmxConnectionPool connectionPool) {
+        this(config, receiver, connectionPool, null, null, newBeanTimeoutCounter());
+    }
+
+    /**
+     * @param beanStats where to record per-bean timings, or null to only log them.
+     * @param skipper attributes not to read, or null to read all of them.
+     * @param beanTimeouts where to count the beans given up on, from {@link #newBeanTimeoutCounter()}.
+     */
+    JmxScraper(Config config, BeanValueReceiver receiver, JmxConnectionPool connectionPool, BeanScrapeStats beanStats,
+               AttributeSkipper skipper, Counter beanTimeouts) {
+        this.config = config;
         this.receiver = receiver;
-        this.username = username;
-        this.password = password;
-        this.ssl = ssl;
-        this.whitelistObjectNames = whitelistObjectNames;
-        this.blacklistObjectNames = blacklistObjectNames;
+        this.connectionPool = connectionPool;
+        this.beanStats = beanStats;
+        this.skipper = skipper;
+        this.beanTimeouts = beanTimeouts;
+    }
+
+    private static Config scrapeConfig(String jmxUrl, String username, String password, boolean ssl, List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames) {
+        Config config = new Config();
+        config.jmxUrl = jmxUrl;
+        config.username = username;
+        config.password = password;
+        config.ssl = ssl;
+        config.whitelistObjectNames = whitelistObjectNames;
+        config.blacklistObjectNames = blacklistObjectNames;
+        return config;
     }
 
     /**
       * Get a list of mbeans on host_port and scrape their values.
       *
-      * Values are passed to the receiver in a single thread.
+      * Values are passed to the receiver in a single thread, even when
+      * beans are scraped concurrently.
       */
     public void doScrape() throws Exception {
-        MBeanServerConnection beanConn;
-        JMXConnector jmxc = null;
-        if (jmxUrl.isEmpty()) {
-          beanConn = ManagementFactory.getPlatformMBeanServer();
-        } else {
-          Map<String, Object> environment = new HashMap<String, Object>();
-          if (username != null && username.length() != 0 && password != null && password.length() != 0) {
-            String[] credent = new String[] {username, password};
-            environment.put(javax.management.remote.JMXConnector.CREDENTIALS, credent);
-          }
-          if (ssl) {
-              environment.put(Context.SECURITY_PROTOCOL, "ssl");
-              SslRMIClientSocketFactory clientSocketFactory = new SslRMIClientSocketFactory();
-              environment.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, clientSocketFactory);
-              environment.put("com.sun.jndi.rmi.factory.socket", clientSocketFactory);
-          }
+        roundTrips.set(0);
+        JmxConnection connection = connectionPool.acquire(config.jmxUrl, config.username, config.password, config.ssl);
+        try {
+            long resyncIntervalNanos = TimeUnit.SECONDS.toNanos(config.objectNameResyncIntervalSeconds);
+            MBeanNameIndex nameIndex = connection.getNameIndex(config.whitelistObjectNames, config.blacklistObjectNames,
+                    resyncIntervalNanos);
+            List<ObjectName> names;
+            synchronized (nameIndex.resyncLock) {
+                names = nameIndex.currentNames(resyncIntervalNanos);
+                if (names == null) {
+                    nameIndex.beginResync();
+                    boolean completed = false;
+                    try {
+                        names = nameIndex.completeResync(queryNames(connection));
+                        completed = true;
+                    } finally {
+                        if (!completed) {
+                            nameIndex.abortResync();
+                        }
+                    }
+                }
+            }
+            if (!connection.receivesRegistrations() && config.mbeanInfoCacheTtlSeconds > 0) {
+                connection.getMBeanInfoCache().sweepIfDue(TimeUnit.SECONDS.toNanos(config.mbeanInfoCacheTtlSeconds));
+            }
+            scrapeBeans(connection, names);
+        } catch (IOException e) {
+            connectionPool.invalidate(connection);
+            throw e;
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
 
-          jmxc = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl), environment);
-          beanConn = jmxc.getMBeanServerConnection();
+    /**
+     * Scrape the beans, using up to scrapeConcurrency threads.
+     *
+     * With more than one thread each bean is recorded into its own buffer,
+     * and the buffers are passed on to the receiver in the order of the names
+     * once all beans are done.
+     */
+    private void scrapeBeans(final JmxConnection connection, final List<ObjectName> names) throws Exception {
+        if (config.scrapeTimeoutSeconds > 0 || config.beanTimeoutSeconds > 0) {
+            scrapeBeansWithTimeouts(connection, names);
+            return;
         }
+        int concurrency = Math.min(config.scrapeConcurrency, names.size());
+        if (concurrency <= 1) {
+            for (ObjectName name : names) {
+                scrapeBeanTimed(connection, name, receiver);
+            }
+            return;
+        }
+
+        final BufferedReceiver[] buffers = new BufferedReceiver[names.size()];
+        final AtomicInteger next = new AtomicInteger();
+        Callable<Void> worker = new Callable<Void>() {
+            public Void call() {
+                for (int i = next.getAndIncrement(); i < buffers.length; i = next.getAndIncrement()) {
+                    buffers[i] = new BufferedReceiver();
+                    scrapeBeanTimed(connection, names.get(i), buffers[i]);
+                }
+                return null;
+            }
+        };
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        // The calling thread is one of the workers, and does all the work if no others are free.
+        for (int i = 1; i < concurrency; i++) {
+            try {
+                futures.add(workers.submit(worker));
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.call();
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+        for (BufferedReceiver buffer : buffers) {
+            buffer.replay(receiver);
+        }
+    }
+
+    /**
+     * Scrape the beans on worker threads, giving up on a bean after beanTimeoutSeconds
+     * and on the rest of the scrape after scrapeTimeoutSeconds.
+     *
+     * The beans that finished in time are passed on to the receiver in the order
+     * of the names. Beans that took longer than beanTimeoutSeconds are counted
+     * in jmx_scrape_timeouts_total and skipped for the next beanQuarantineScrapes
+     * scrapes. Beans whose last read is still running are skipped until it ends.
+     */
+    private void scrapeBeansWithTimeouts(final JmxConnection connection, List<ObjectName> names) throws Exception {
+        long scrapeDeadline = System.nanoTime() + (config.scrapeTimeoutSeconds > 0 ? TimeUnit.SECONDS.toNanos(config.scrapeTimeoutSeconds) : NO_TIMEOUT);
+        long beanTimeoutNanos = config.beanTimeoutSeconds > 0 ? TimeUnit.SECONDS.toNanos(config.beanTimeoutSeconds) : NO_TIMEOUT;
+        int concurrency = Math.max(1, config.scrapeConcurrency);
+        BeanQuarantine quarantine = connection.getBeanQuarantine();
+
+        BufferedReceiver[] buffers = new BufferedReceiver[names.size()];
+        LinkedList<PendingBean> inFlight = new LinkedList<PendingBean>();
+        boolean expired = false;
+        int started = 0;
+        for (; started < names.size() && !expired; started++) {
+            final ObjectName name = names.get(started);
+            if (quarantine.skip(name)) {
+                logScrape(name.toString(), "quarantined");
+                continue;
+            }
+            while (inFlight.size() >= concurrency && !expired) {
+                expired = !awaitBean(inFlight.removeFirst(), buffers, scrapeDeadline, beanTimeoutNanos, quarantine);
+            }
+            if (expired) {
+                break;
+            }
+            if (!quarantine.startReading(name)) {
+                logScrape(name.toString(), "previous read still running");
+                continue;
+            }
+            final BufferedReceiver buffer = new BufferedReceiver();
+            final FutureTask<Void> future = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() {
+                    scrapeBeanTimed(connection, name, buffer);
+                    return null;
+                }
+            });
+            final BeanQuarantine readingQuarantine = quarantine;
+            try {
+                // The read only ends when the thread is done with it, which for a
+                // cancelled future can be much later, or before it even started.
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            future.run();
+                        } finally {
+                            readingQuarantine.doneReading(name);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                quarantine.doneReading(name);
+                logScrape(name.toString(), "no worker thread free");
+                continue;
+            }
+            inFlight.add(new PendingBean(started, name, buffer, future));
+        }
+        // Once the deadline has passed this only collects the beans that happen to be done.
+        while (!inFlight.isEmpty()) {
+            awaitBean(inFlight.removeFirst(), buffers, scrapeDeadline, beanTimeoutNanos, quarantine);
+        }
+        if (started < names.size()) {
+            logger.warning("Scrape of " + config.jmxUrl + " ran out of time, skipped " + (names.size() - started) + " beans");
+        }
+
+        for (BufferedReceiver buffer : buffers) {
+            if (buffer != null) {
+                buffer.replay(receiver);
+            }
+        }
+    }
+
+    /**
+     * Wait for a bean until its own timeout or the scrape deadline, whichever comes first.
+     *
+     * @return false if the scrape deadline has passed.
+     */
+    private boolean awaitBean(PendingBean bean, BufferedReceiver[] buffers, long scrapeDeadline, long beanTimeoutNanos, BeanQuarantine quarantine) throws Exception {
+        long now = System.nanoTime();
+        long beanDeadline = bean.startNanos + beanTimeoutNanos;
+        long timeLeft = Math.min(beanDeadline - now, scrapeDeadline - now);
         try {
-            // Query MBean names, see #89 for reasons queryMBeans() is used instead of queryNames()
-            Set<ObjectInstance> mBeanNames = new HashSet();
-            for (ObjectName name : whitelistObjectNames) {
-                mBeanNames.addAll(beanConn.queryMBeans(name, null));
+            bean.future.get(Math.max(timeLeft, 0), TimeUnit.NANOSECONDS);
+            buffers[bean.index] = bean.buffer;
+        } catch (TimeoutException e) {
+            // The worker may be stuck in a call that ignores interrupts. It's left behind
+            // either way, and the quarantine keeps the bean from being read again until it's done.
+            bean.future.cancel(true);
+            if (System.nanoTime() - beanDeadline >= 0) {
+                beanTimeouts.labels(bean.name.toString()).inc();
+                quarantine.add(bean.name, config.beanQuarantineScrapes);
+                logger.warning("Reading " + bean.name + " took too long, giving up on it");
+            } else {
+                // Only cut off by the scrape deadline, which says nothing about the bean.
+                logger.fine("Scrape of " + config.jmxUrl + " ran out of time while reading " + bean.name);
             }
-            if (whitelistObjectNames.size() == 0) {
-                mBeanNames.addAll(beanConn.queryMBeans(null, null));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
             }
-            for (ObjectName name : blacklistObjectNames) {
-                mBeanNames.removeAll(beanConn.queryMBeans(name, null));
+            throw e;
+        }
+        return System.nanoTime() - scrapeDeadline < 0;
+    }
+
+    private static class PendingBean {
+        final int index;
+        final ObjectName name;
+        final BufferedReceiver buffer;
+        final Future<Void> future;
+        final long startNanos = System.nanoTime();
+
+        PendingBean(int index, ObjectName name, BufferedReceiver buffer, Future<Void> future) {
+            this.index = index;
+            this.name = name;
+            this.buffer = buffer;
+            this.future = future;
+        }
+    }
+
+    private void scrapeBeanTimed(JmxConnection connection, ObjectName name, BeanValueReceiver beanReceiver) {
+        long start = System.nanoTime();
+        BeanResult result = new BeanResult();
+        scrapeBean(connection, name, beanReceiver, result);
+        long duration = System.nanoTime() - start;
+        logger.fine("TIME: " + duration + " ns for " + name.toString());
+        if (beanStats != null) {
+            beanStats.record(name, duration, result.attributesRead, result.attributesFailed);
+        }
+    }
+
+    private Set<ObjectName> queryNames(JmxConnection connection) throws IOException {
+        MBeanServerConnection beanConn = connection.getMBeanServerConnection();
+        Set<ObjectName> names = new HashSet<ObjectName>();
+        for (ObjectName query : mergeQueries(config.whitelistObjectNames)) {
+            roundTrips.incrementAndGet();
+            if (connection.isRemote()) {
+                // See #89 for reasons queryMBeans() is used instead of queryNames() on remote servers.
+                for (ObjectInstance instance : beanConn.queryMBeans(query, null)) {
+                    names.add(instance.getObjectName());
+                }
+            } else {
+                names.addAll(beanConn.queryNames(query, null));
             }
-            for (ObjectInstance name : mBeanNames) {
-                long start = System.nanoTime();
-                scrapeBean(beanConn, name.getObjectName());
-                logger.fine("TIME: " + (System.nanoTime() - start) + " ns for " + name.getObjectName().toString());
+        }
+        // Checking the blacklist here saves a query per pattern, each as heavy as a whitelist query.
+        if (!config.blacklistObjectNames.isEmpty()) {
+            Iterator<ObjectName> it = names.iterator();
+            while (it.hasNext()) {
+                ObjectName name = it.next();
+                for (ObjectName pattern : config.blacklistObjectNames) {
+                    if (pattern.apply(name)) {
+                        it.remove();
+                        break;
+                    }
+                }
             }
-        } finally {
-          if (jmxc != null) {
-            jmxc.close();
-          }
         }
+        return names;
     }
 
-    private void scrapeBean(MBeanServerConnection beanConn, ObjectName mbeanName) {
-        MBeanInfo info;
+    /**
+     * The queries needed to find all beans matching the whitelist, leaving
+     * out duplicates and patterns covered by another pattern.
+     *
+     * An empty whitelist, or one with null, queries all beans.
+     */
+    static List<ObjectName> mergeQueries(List<ObjectName> whitelistObjectNames) {
+        List<ObjectName> queries = new ArrayList<ObjectName>();
+        if (whitelistObjectNames.isEmpty() || whitelistObjectNames.contains(null)) {
+            queries.add(null);
+            return queries;
+        }
+        for (int i = 0; i < whitelistObjectNames.size(); i++) {
+            ObjectName name = whitelistObjectNames.get(i);
+            boolean covered = false;
+            for (int j = 0; j < whitelistObjectNames.size() && !covered; j++) {
+                ObjectName other = whitelistObjectNames.get(j);
+                if (i == j) {
+                    continue;
+                }
+                if (other.equals(name)) {
+                    // Keep the first of equal names.
+                    covered = j < i;
+                } else {
+                    covered = covers(other, name);
+                }
+            }
+            if (!covered) {
+                queries.add(name);
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Whether every name matching b also matches a, as far as can easily be told.
+     */
+    private static boolean covers(ObjectName a, ObjectName b) {
+        if (!b.isPattern()) {
+            return a.apply(b);
+        }
+        if (a.getCanonicalName().equals("*:*")) {
+            return true;
+        }
+        // A whole domain, such as java.lang:*, covers any pattern within it.
+        return !a.isDomainPattern() && !b.isDomainPattern() && a.getDomain().equals(b.getDomain())
+                && a.isPropertyListPattern() && a.getKeyPropertyList().isEmpty()
+                && !a.isPropertyValuePattern();
+    }
+
+    /**
+     * Number of requests made to the MBeanServer by {@link #doScrape()}.
+     */
+    long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    /**
+     * Attribute counts of a bean, for {@link BeanScrapeStats}.
+     */
+    private static class BeanResult {
+        int attributesRead;
+        int attributesFailed;
+    }
+
+    private void scrapeBean(JmxConnection connection, ObjectName mbeanName, BeanValueReceiver beanReceiver, BeanResult result) {
+        MBeanServerConnection beanConn = connection.getMBeanServerConnection();
+        MBeanInfoCache mbeanInfoCache = connection.getMBeanInfoCache();
+        // Without registration notifications we can't tell when a bean changes, so fall back to a TTL.
+        long ttlNanos = connection.receivesRegistrations() ? -1 : TimeUnit.SECONDS.toNanos(config.mbeanInfoCacheTtlSeconds);
+        MBeanInfo info = mbeanInfoCache.getIfPresent(mbeanName, ttlNanos);
+        MBeanInfoCache.Entry loading = null;
         try {
-          info = beanConn.getMBeanInfo(mbeanName);
+          if (info == null) {
+            roundTrips.incrementAndGet();
+            if (ttlNanos != 0) {
+              loading = mbeanInfoCache.startLoading(mbeanName);
+            }
+            info = beanConn.getMBeanInfo(mbeanName);
+            if (loading != null) {
+              mbeanInfoCache.put(mbeanName, loading, info);
+              loading = null;
+            }
+          }
         } catch (IOException e) {
+          // The connection is most likely gone, have it replaced for the next scrape.
+          connection.markBroken();
           logScrape(mbeanName.toString(), "getMBeanInfo Fail: " + e);
+          result.attributesFailed++;
           return;
         } catch (JMException e) {
           logScrape(mbeanName.toString(), "getMBeanInfo Fail: " + e);
+          result.attributesFailed++;
           return;
+        } finally {
+          if (loading != null) {
+            mbeanInfoCache.abandon(mbeanName, loading);
+          }
         }
         MBeanAttributeInfo[] attrInfos = info.getAttributes();
+        KeyPropertyList beanProperties = connection.getKeyPropertyListCache().get(mbeanName);
 
+        List<MBeanAttributeInfo> toRead = new ArrayList<MBeanAttributeInfo>(attrInfos.length);
+        List<String> readableNames = new ArrayList<String>(attrInfos.length);
         for (int idx = 0; idx < attrInfos.length; ++idx) {
             MBeanAttributeInfo attr = attrInfos[idx];
             if (!attr.isReadable()) {
                 logScrape(mbeanName, attr, "not readable");
                 continue;
             }
+            if (!config.readsAttribute(mbeanName, attr.getName())) {
+                logScrape(mbeanName, attr, "filtered");
+                continue;
+            }
+            String skipped = skipper == null ? null : skipper.skip(mbeanName.getDomain(), beanProperties, attr.getName());
+            if (skipped != null) {
+                logScrape(mbeanName, attr, skipped);
+                continue;
+            }
+            toRead.add(attr);
+            readableNames.add(attr.getName());
+        }
+        Map<String, Object> values = getAttributes(connection, mbeanName, readableNames);
 
+        for (MBeanAttributeInfo attr : toRead) {
             Object value;
-            try {
-                value = beanConn.getAttribute(mbeanName, attr.getName());
-            } catch(Exception e) {
-                logScrape(mbeanName, attr, "Fail: " + e);
-                continue;
+            if (values.containsKey(attr.getName())) {
+                value = values.get(attr.getName());
+            } else {
+                // Not returned by the bulk read, usually because reading it threw.
+                try {
+                    roundTrips.incrementAndGet();
+                    value = beanConn.getAttribute(mbeanName, attr.getName());
+                } catch(Exception e) {
+                    logScrape(mbeanName, attr, "Fail: " + e);
+                    result.attributesFailed++;
+                    continue;
+                }
             }
+            result.attributesRead++;
 
             logScrape(mbeanName, attr, "process");
             processBeanValue(
+                    beanReceiver,
                     mbeanName.getDomain(),
-                    getKeyPropertyList(mbeanName),
-                    new LinkedList<String>(),
+                    beanProperties,
+                    AttributePath.EMPTY,
                     attr.getName(),
                     attr.getType(),
                     attr.getDescription(),
@@ -171,22 +574,42 @@ public class JmxScraper {
         }
     }
 
+    /**
+     * Read all the given attributes in one call.
+     *
+     * Attributes that couldn't be read are missing from the result, and
+     * should be retried one by one.
+     */
+    private Map<String, Object> getAttributes(JmxConnection connection, ObjectName mbeanName, List<String> names) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        if (names.isEmpty()) {
+            return values;
+        }
+        AttributeList attributes;
+        try {
+            roundTrips.incrementAndGet();
+            attributes = connection.getMBeanServerConnection().getAttributes(mbeanName, names.toArray(new String[names.size()]));
+        } catch (IOException e) {
+            connection.markBroken();
+            logScrape(mbeanName.toString(), "getAttributes Fail: " + e);
+            return values;
+        } catch (Exception e) {
+            logScrape(mbeanName.toString(), "getAttributes Fail: " + e);
+            return values;
+        }
+        for (Object attribute : attributes) {
+            if (attribute instanceof Attribute) {
+                values.put(((Attribute) attribute).getName(), ((Attribute) attribute).getValue());
+            }
+        }
+        return values;
+    }
+
     static LinkedHashMap<String, String> getKeyPropertyList(ObjectName mbeanName) {
         // Implement a version of ObjectName.getKeyPropertyList that returns the
         // properties in the ordered they were added (the ObjectName stores them
         // in the order they were added).
-        LinkedHashMap<String, String> output = new LinkedHashMap<String, String>();
-        String properties = mbeanName.getKeyPropertyListString();
-        Matcher match = PROPERTY_PATTERN.matcher(properties);
-        while (match.lookingAt()) {
-            output.put(match.group(1), match.group(2));
-            properties = properties.substring(match.end());
-            if (properties.startsWith(",")) {
-                properties = properties.substring(1);
-            }
-            match.reset(properties);
-        }
-        return output;
+        return KeyPropertyList.parse(mbeanName.getKeyPropertyListString()).toMap();
     }
 
     /**
@@ -195,19 +618,20 @@ public class JmxScraper {
      * so this function tries to do a best-effort pass of getting the values/names
      * out in a way it can be processed elsewhere easily.
      */
-    private void processBeanValue(
+    void processBeanValue(
+            BeanValueReceiver beanReceiver,
             String domain,
-            LinkedHashMap<String, String> beanProperties,
-            LinkedList<String> attrKeys,
+            KeyPropertyList beanProperties,
+            AttributePath attrKeys,
             String attrName,
             String attrType,
             String attrDescription,
             Object value) {
         if (value == null) {
-            logScrape(domain + beanProperties + attrName, "null");
+            logScrape(domain, beanProperties, attrName, "null");
         } else if (value instanceof Number || value instanceof String || value instanceof Boolean) {
-            logScrape(domain + beanProperties + attrName, value.toString());
-            this.receiver.recordBean(
+            logScrape(domain, beanProperties, attrName, value);
+            beanReceiver.recordBean(
                     domain,
                     beanProperties,
                     attrKeys,
@@ -216,18 +640,18 @@ public class JmxScraper {
                     attrDescription,
                     value);
         } else if (value instanceof CompositeData) {
-            logScrape(domain + beanProperties + attrName, "compositedata");
+            logScrape(domain, beanProperties, attrName, "compositedata");
             CompositeData composite = (CompositeData) value;
             CompositeType type = composite.getCompositeType();
-            attrKeys = new LinkedList<String>(attrKeys);
-            attrKeys.add(attrName);
+            AttributePath keyAttrKeys = attrKeys.append(attrName);
             for(String key : type.keySet()) {
                 String typ = type.getType(key).getTypeName();
                 Object valu = composite.get(key);
                 processBeanValue(
+                        beanReceiver,
                         domain,
                         beanProperties,
-                        attrKeys,
+                        keyAttrKeys,
                         key,
                         typ,
                         type.getDescription(),
@@ -239,27 +663,26 @@ public class JmxScraper {
             // meant to be used according to the docs. I've only seen them
             // used as 'key' 'value' pairs even when 'value' is itself a
             // CompositeData of multiple values.
-            logScrape(domain + beanProperties + attrName, "tabulardata");
+            logScrape(domain, beanProperties, attrName, "tabulardata");
             TabularData tds = (TabularData) value;
             TabularType tt = tds.getTabularType();
 
             List<String> rowKeys = tt.getIndexNames();
-            LinkedHashMap<String, String> l2s = new LinkedHashMap<String, String>(beanProperties);
 
             CompositeType type = tt.getRowType();
             Set<String> valueKeys = new TreeSet<String>(type.keySet());
             valueKeys.removeAll(rowKeys);
 
-            LinkedList<String> extendedAttrKeys = new LinkedList<String>(attrKeys);
-            extendedAttrKeys.add(attrName);
+            AttributePath extendedAttrKeys = attrKeys.append(attrName);
             for (Object valu : tds.values()) {
                 if (valu instanceof CompositeData) {
                     CompositeData composite = (CompositeData) valu;
+                    KeyPropertyList l2s = beanProperties;
                     for (String idx : rowKeys) {
-                        l2s.put(idx, composite.get(idx).toString());
+                        l2s = l2s.with(idx, composite.get(idx).toString());
                     }
                     for(String valueIdx : valueKeys) {
-                        LinkedList<String> attrNames = extendedAttrKeys;
+                        AttributePath attrNames = extendedAttrKeys;
                         String typ = type.getType(valueIdx).getTypeName();
                         String name = valueIdx;
                         if (valueIdx.toLowerCase().equals("value")) {
@@ -268,6 +691,7 @@ public class JmxScraper {
                             name = attrName;
                         } 
                         processBeanValue(
+                            beanReceiver,
                             domain,
                             l2s,
                             attrNames,
@@ -281,22 +705,195 @@ public class JmxScraper {
                 }
             }
         } else if (value.getClass().isArray()) {
-            logScrape(domain, "arrays are unsupported");
+            processArray(beanReceiver, domain, beanProperties, attrKeys, attrName, attrDescription, value);
         } else {
             logScrape(domain + beanProperties, attrType + " is not exported");
         }
     }
 
+    /**
+     * Pass on the elements of an array like rows of TabularData, with the
+     * position of each as an extra key property, up to arrayMaxElements of
+     * them. Primitive arrays are read by loops of their own type rather than
+     * through reflection.
+     */
+    private void processArray(
+            BeanValueReceiver beanReceiver,
+            String domain,
+            KeyPropertyList beanProperties,
+            AttributePath attrKeys,
+            String attrName,
+            String attrDescription,
+            Object array) {
+        int max = config.arrayMaxElements;
+        if (max <= 0) {
+            logScrape(domain, beanProperties, attrName, "arrays aren't exported");
+            return;
+        }
+        String label = config.arrayIndexLabel;
+        String elementType = array.getClass().getComponentType().getName();
+        if (array instanceof long[]) {
+            long[] elements = (long[]) array;
+            int n = elementCount(domain, beanProperties, attrName, elements.length, max);
+            for (int i = 0; i < n; i++) {
+                processBeanValue(beanReceiver, domain, beanProperties.with(label, String.valueOf(i)), attrKeys, attrName,
+                        elementType, attrDescription, Long.valueOf(elements[i]));
+            }
+        } else if (array instanceof int[]) {
+            int[] elements = (int[]) array;
+            int n = elementCount(domain, beanProperties, attrName, elements.length, max);
+            for (int i = 0; i < n; i++) {
+                processBeanValue(beanReceiver, domain, beanProperties.with(label, String.valueOf(i)), attrKeys, attrName,
+                        elementType, attrDescription, Integer.valueOf(elements[i]));
+            }
+        } else if (array instanceof double[]) {
+            double[] elements = (double[]) array;
+            int n = elementCount(domain, beanProperties, attrName, elements.length, max);
+            for (int i = 0; i < n; i++) {
+                processBeanValue(beanReceiver, domain, beanProperties.with(label, String.valueOf(i)), attrKeys, attrName,
+                        elementType, attrDescription, Double.valueOf(elements[i]));
+            }
+        } else if (array instanceof float[]) {
+            float[] elements = (float[]) array;
+            int n = elementCount(domain, beanProperties, attrName, elements.length, max);
+            for (int i = 0; i < n; i++) {
+                processBeanValue(beanReceiver, domain, beanProperties.with(label, String.valueOf(i)), attrKeys, attrName,
+                        elementType, attrDescription, Float.valueOf(elements[i]));
+            }
+        } else if (array instanceof short[]) {
+            short[] elements = (short[]) array;
+            int n = elementCount(domain, beanProperties, attrName, elements.length, max);
+            for (int i = 0; i < n; i++) {
+                processBeanValue(beanReceiver, domain, beanProperties.with(label, String.valueOf(i)), attrKeys, attrName,
+                        elementType, attrDescription, Short.valueOf(elements[i]));
+            }
+        } else if (array instanceof byte[]) {
+            byte[] elements = (byte[]) array;
+            int n = elementCount(domain, beanProperties, attrName, elements.length, max);
+            for (int i = 0; i < n; i++) {
+                processBeanValue(beanReceiver, domain, beanProperties.with(label, String.valueOf(i)), attrKeys, attrName,
+                        elementType, attrDescription, Byte.valueOf(elements[i]));
+            }
+        } else if (array instanceof boolean[]) {
+            boolean[] elements = (boolean[]) array;
+            int n = elementCount(domain, beanProperties, attrName, elements.length, max);
+            for (int i = 0; i < n; i++) {
+                processBeanValue(beanReceiver, domain, beanProperties.with(label, String.valueOf(i)), attrKeys, attrName,
+                        elementType, attrDescription, Boolean.valueOf(elements[i]));
+            }
+        } else if (array instanceof Object[]) {
+            // Numbers, strings, CompositeData and so on, each handled as if it were the attribute.
+            Object[] elements = (Object[]) array;
+            int n = elementCount(domain, beanProperties, attrName, elements.length, max);
+            for (int i = 0; i < n; i++) {
+                processBeanValue(beanReceiver, domain, beanProperties.with(label, String.valueOf(i)), attrKeys, attrName,
+                        elementType, attrDescription, elements[i]);
+            }
+        } else {
+            logScrape(domain, beanProperties, attrName, elementType + " arrays aren't exported");
+        }
+    }
+
+    private int elementCount(String domain, KeyPropertyList beanProperties, String attrName, int length, int max) {
+        if (length > max) {
+            logScrape(domain, beanProperties, attrName, "only the first " + max + " of " + length + " elements are exported");
+            return max;
+        }
+        return length;
+    }
+
     /**
      * For debugging.
      */
     private static void logScrape(ObjectName mbeanName, MBeanAttributeInfo attr, String msg) {
-        logScrape(mbeanName + "'_'" + attr.getName(), msg);
+        if (logger.isLoggable(Level.FINE)) {
+            logScrape(mbeanName + "'_'" + attr.getName(), msg);
+        }
+    }
+    // Called for every value, so only build the name when it's logged.
+    private static void logScrape(String domain, KeyPropertyList beanProperties, String attrName, Object msg) {
+        if (logger.isLoggable(Level.FINE)) {
+            logScrape(domain + beanProperties + attrName, String.valueOf(msg));
+        }
     }
     private static void logScrape(String name, String msg) {
         logger.log(Level.FINE, "scrape: '" + name + "': " + msg);
     }
 
+    /**
+     * Holds on to the values of a bean until they can be passed to the real receiver.
+     */
+    private static class BufferedReceiver implements BeanValueReceiver {
+        private final List<Record> records = new ArrayList<Record>();
+
+        public void recordBean(
+            String domain,
+            KeyPropertyList beanProperties,
+            AttributePath attrKeys,
+            String attrName,
+            String attrType,
+            String attrDescription,
+            Object value) {
+            records.add(new Record(
+                domain,
+                beanProperties,
+                attrKeys,
+                attrName,
+                attrType,
+                attrDescription,
+                value));
+        }
+
+        void replay(BeanValueReceiver receiver) {
+            for (Record r : records) {
+                receiver.recordBean(r.domain, r.beanProperties, r.attrKeys, r.attrName, r.attrType, r.attrDescription, r.value);
+            }
+        }
+
+        private static class Record {
+            final String domain;
+            final KeyPropertyList beanProperties;
+            final AttributePath attrKeys;
+            final String attrName;
+            final String attrType;
+            final String attrDescription;
+            final Object value;
+
+            Record(String domain, KeyPropertyList beanProperties, AttributePath attrKeys,
+                   String attrName, String attrType, String attrDescription, Object value) {
+                this.domain = domain;
+                this.beanProperties = beanProperties;
+                this.attrKeys = attrKeys;
+                this.attrName = attrName;
+                this.attrType = attrType;
+                this.attrDescription = attrDescription;
+                this.value = value;
+            }
+        }
+    }
+
+    /**
+     * Passes values on to an {@link MBeanReceiver}, giving it its own copies of the properties and attribute path.
+     */
+    static class MBeanReceiverAdapter implements BeanValueReceiver {
+        private final MBeanReceiver receiver;
+
+        MBeanReceiverAdapter(MBeanReceiver receiver) {
+            this.receiver = receiver;
+        }
+
+        public void recordBean(
+            String domain,
+            KeyPropertyList beanProperties,
+            AttributePath attrKeys,
+            String attrName,
+            String attrType,
+            String attrDescription,
+            Object value) {
+            receiver.recordBean(domain, beanProperties.toMap(), attrKeys.toList(), attrName, attrType, attrDescription, value);
+        }
+    }
+
     private static class StdoutWriter implements MBeanReceiver {
         public void recordBean(
             String domain,
@@ -0,0 +1,194 @@
+package io.prometheus.jmx;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * The key properties of a bean name, in the order they appear in the name.
+ *
+ * Immutable, so a single instance is shared by all attributes of a bean and
+ * kept across scrapes. Rows of TabularData get their own copy with the index
+ * columns added.
+ */
+public final class KeyPropertyList {
+  static final KeyPropertyList EMPTY = new KeyPropertyList(new String[0]);
+
+  // Keys at even positions, each followed by its value.
+  private final String[] keysAndValues;
+  private String string;
+  private int hash;
+
+  private KeyPropertyList(String[] keysAndValues) {
+    this.keysAndValues = keysAndValues;
+  }
+
+  public int size() {
+    return keysAndValues.length / 2;
+  }
+
+  public String getKey(int index) {
+    return keysAndValues[index * 2];
+  }
+
+  public String getValue(int index) {
+    return keysAndValues[index * 2 + 1];
+  }
+
+  /**
+   * @return the value of the key, or null if there isn't one.
+   */
+  public String get(String key) {
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      if (keysAndValues[i].equals(key)) {
+        return keysAndValues[i + 1];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A list with the key set to the value, in place if it's already present and at the end otherwise.
+   */
+  KeyPropertyList with(String key, String value) {
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      if (keysAndValues[i].equals(key)) {
+        String[] replaced = keysAndValues.clone();
+        replaced[i + 1] = value;
+        return new KeyPropertyList(replaced);
+      }
+    }
+    String[] appended = Arrays.copyOf(keysAndValues, keysAndValues.length + 2);
+    appended[keysAndValues.length] = key;
+    appended[keysAndValues.length + 1] = value;
+    return new KeyPropertyList(appended);
+  }
+
+  public LinkedHashMap<String, String> toMap() {
+    LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      map.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return map;
+  }
+
+  /**
+   * Parse the key property list string of an ObjectName, keeping the order.
+   *
+   * Each property is name=value, separated by commas. The name is anything
+   * but a comma, equals, colon, star or question mark. The value is either
+   * quoted, with only \\, \n, \", \? and \* escapes, or anything but a
+   * comma, equals, colon or quote. Parsing stops at anything else.
+   */
+  static KeyPropertyList parse(String properties) {
+    String[] keysAndValues = new String[8];
+    int count = 0;
+    int length = properties.length();
+    int pos = 0;
+    while (pos < length) {
+      int nameStart = pos;
+      while (pos < length && ",=:*?".indexOf(properties.charAt(pos)) < 0) {
+        pos++;
+      }
+      if (pos == nameStart || pos == length || properties.charAt(pos) != '=') {
+        break;
+      }
+      String name = properties.substring(nameStart, pos);
+      pos++;
+
+      int valueStart = pos;
+      int valueEnd = quotedValueEnd(properties, pos);
+      if (valueEnd < 0) {
+        // An unterminated quoted value counts as an empty unquoted one.
+        valueEnd = pos;
+        while (valueEnd < length && ",=:\"".indexOf(properties.charAt(valueEnd)) < 0) {
+          valueEnd++;
+        }
+      }
+      String value = properties.substring(valueStart, valueEnd);
+      pos = valueEnd;
+      if (pos < length && properties.charAt(pos) == ',') {
+        pos++;
+      }
+
+      // Like a map, a repeated key keeps its place and takes the later value.
+      int existing = -1;
+      for (int i = 0; i < count; i += 2) {
+        if (keysAndValues[i].equals(name)) {
+          existing = i;
+          break;
+        }
+      }
+      if (existing >= 0) {
+        keysAndValues[existing + 1] = value;
+        continue;
+      }
+      if (count == keysAndValues.length) {
+        keysAndValues = Arrays.copyOf(keysAndValues, count * 2);
+      }
+      keysAndValues[count++] = name;
+      keysAndValues[count++] = value;
+    }
+    return count == 0 ? EMPTY : new KeyPropertyList(Arrays.copyOf(keysAndValues, count));
+  }
+
+  /**
+   * The end of the quoted value starting at pos, or -1 if there isn't a valid one.
+   */
+  private static int quotedValueEnd(String properties, int pos) {
+    int length = properties.length();
+    if (pos >= length || properties.charAt(pos) != '"') {
+      return -1;
+    }
+    int i = pos + 1;
+    while (i < length) {
+      char c = properties.charAt(i);
+      if (c == '"') {
+        return i + 1;
+      }
+      if (c == '\\') {
+        if (i + 1 >= length || "\\n\"?*".indexOf(properties.charAt(i + 1)) < 0) {
+          return -1;
+        }
+        i += 2;
+      } else {
+        i++;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof KeyPropertyList && Arrays.equals(keysAndValues, ((KeyPropertyList) o).keysAndValues);
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      h = Arrays.hashCode(keysAndValues);
+      hash = h;
+    }
+    return h;
+  }
+
+  /**
+   * The same as toString() of the equivalent LinkedHashMap, as rules are matched against it.
+   */
+  @Override
+  public String toString() {
+    String s = string;
+    if (s == null) {
+      StringBuilder sb = new StringBuilder("{");
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        if (i > 0) {
+          sb.append(", ");
+        }
+        sb.append(keysAndValues[i]).append('=').append(keysAndValues[i + 1]);
+      }
+      s = sb.append('}').toString();
+      string = s;
+    }
+    return s;
+  }
+}
@@ -0,0 +1,49 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.ObjectName;
+
+/**
+ * The parsed key property list of each bean, kept across scrapes.
+ *
+ * The properties of a name never change, so entries are only dropped when
+ * the bean is unregistered. If the MBeanServer doesn't deliver notifications,
+ * the cache is cleared once it grows past a limit instead.
+ */
+class KeyPropertyListCache implements JmxConnection.RegistrationListener {
+  private final int maxSize;
+  private final ConcurrentMap<ObjectName, KeyPropertyList> entries =
+      new ConcurrentHashMap<ObjectName, KeyPropertyList>();
+
+  KeyPropertyListCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  KeyPropertyList get(ObjectName name) {
+    KeyPropertyList properties = entries.get(name);
+    if (properties == null) {
+      properties = KeyPropertyList.parse(name.getKeyPropertyListString());
+      if (entries.size() >= maxSize) {
+        entries.clear();
+      }
+      entries.put(name, properties);
+    }
+    return properties;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  public void registered(ObjectName name) {
+  }
+
+  public void unregistered(ObjectName name) {
+    entries.remove(name);
+  }
+
+  public void registrationsLost() {
+    entries.clear();
+  }
+}
@@ -0,0 +1,111 @@
+package io.prometheus.jmx;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * MBeanInfo of each bean, kept across scrapes.
+ *
+ * MBeanInfo almost never changes during the lifetime of a bean, so entries
+ * are dropped when the bean is registered or unregistered. If the MBeanServer
+ * doesn't deliver those notifications, entries expire after a TTL instead,
+ * and are swept out once per TTL so beans that went away don't pile up.
+ *
+ * A bean being fetched has a placeholder entry, which a notification removes
+ * like any other. The fetched MBeanInfo only replaces the placeholder, so a
+ * bean unregistered during the fetch doesn't get a stale entry back.
+ */
+class MBeanInfoCache implements JmxConnection.RegistrationListener {
+
+  private final ConcurrentMap<ObjectName, Entry> entries = new ConcurrentHashMap<ObjectName, Entry>();
+  private volatile long lastSweepNanos = System.nanoTime();
+
+  /**
+   * @param ttlNanos how long an entry may be used for, or negative for as long as the bean is registered.
+   * @return the cached MBeanInfo, or null if it has to be fetched.
+   */
+  MBeanInfo getIfPresent(ObjectName name, long ttlNanos) {
+    Entry entry = entries.get(name);
+    if (entry == null || entry.info == null) {
+      return null;
+    }
+    if (ttlNanos >= 0 && System.nanoTime() - entry.loadedNanos >= ttlNanos) {
+      entries.remove(name, entry);
+      return null;
+    }
+    return entry.info;
+  }
+
+  /**
+   * Note that the MBeanInfo of a bean is being fetched.
+   *
+   * @return what to pass to {@link #put} or {@link #abandon}.
+   */
+  Entry startLoading(ObjectName name) {
+    Entry loading = new Entry(null, System.nanoTime());
+    entries.put(name, loading);
+    return loading;
+  }
+
+  /**
+   * Keep the fetched MBeanInfo, unless the bean was registered or unregistered since it was fetched.
+   */
+  void put(ObjectName name, Entry loading, MBeanInfo info) {
+    entries.replace(name, loading, new Entry(info, System.nanoTime()));
+  }
+
+  /**
+   * Forget a fetch that failed.
+   */
+  void abandon(ObjectName name, Entry loading) {
+    entries.remove(name, loading);
+  }
+
+  /**
+   * Drop the entries older than the TTL, if that wasn't done within the last TTL.
+   */
+  void sweepIfDue(long ttlNanos) {
+    long now = System.nanoTime();
+    if (now - lastSweepNanos < ttlNanos) {
+      return;
+    }
+    lastSweepNanos = now;
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      if (now - it.next().loadedNanos >= ttlNanos) {
+        it.remove();
+      }
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  public void registered(ObjectName name) {
+    // A bean can be replaced by one with the same name but different attributes.
+    entries.remove(name);
+  }
+
+  public void unregistered(ObjectName name) {
+    entries.remove(name);
+  }
+
+  public void registrationsLost() {
+    entries.clear();
+  }
+
+  static class Entry {
+    // Null while the MBeanInfo is being fetched.
+    final MBeanInfo info;
+    final long loadedNanos;
+
+    Entry(MBeanInfo info, long loadedNanos) {
+      this.info = info;
+      this.loadedNanos = loadedNanos;
+    }
+  }
+}
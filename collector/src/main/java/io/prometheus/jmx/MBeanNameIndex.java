@@ -0,0 +1,149 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.management.ObjectName;
+
+/**
+ * The names of the beans matching a whitelist and blacklist, kept across scrapes.
+ *
+ * The set is built by querying the MBeanServer, and then kept up to date from
+ * registration notifications. A full resync is done periodically, when
+ * notifications were lost, and on every scrape if the MBeanServer doesn't
+ * deliver notifications at all.
+ */
+class MBeanNameIndex implements JmxConnection.RegistrationListener {
+
+  /**
+   * Held by the scraper while it resyncs, so concurrent scrapes don't all query.
+   */
+  final Object resyncLock = new Object();
+
+  private final List<ObjectName> whitelistObjectNames;
+  private final List<ObjectName> blacklistObjectNames;
+  private final boolean notified;
+
+  private Set<ObjectName> names;
+  private long lastResyncNanos;
+  private volatile long lastUsedNanos = System.nanoTime();
+  // Events received while a resync is running, replayed on top of its result.
+  private List<Event> pendingEvents;
+
+  MBeanNameIndex(JmxConnection connection, List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames) {
+    this.whitelistObjectNames = new ArrayList<ObjectName>(whitelistObjectNames);
+    this.blacklistObjectNames = new ArrayList<ObjectName>(blacklistObjectNames);
+    this.notified = connection.addRegistrationListener(this);
+  }
+
+  void touch(long nowNanos) {
+    lastUsedNanos = nowNanos;
+  }
+
+  long lastUsedNanos() {
+    return lastUsedNanos;
+  }
+
+  /**
+   * The names, or null if they have to be queried again. Call with {@link #resyncLock} held.
+   *
+   * Checked and copied in one go, as lost notifications can throw the names
+   * away at any time.
+   */
+  synchronized List<ObjectName> currentNames(long resyncIntervalNanos) {
+    if (names == null || !notified || System.nanoTime() - lastResyncNanos >= resyncIntervalNanos) {
+      return null;
+    }
+    return new ArrayList<ObjectName>(names);
+  }
+
+  /**
+   * Start recording registration events, call before querying.
+   */
+  synchronized void beginResync() {
+    pendingEvents = new ArrayList<Event>();
+  }
+
+  /**
+   * Replace the names with the result of the queries, and return them.
+   */
+  synchronized List<ObjectName> completeResync(Set<ObjectName> queried) {
+    Set<ObjectName> newNames = new HashSet<ObjectName>(queried);
+    for (Event event : pendingEvents) {
+      if (event.registered) {
+        if (matches(event.name)) {
+          newNames.add(event.name);
+        }
+      } else {
+        newNames.remove(event.name);
+      }
+    }
+    pendingEvents = null;
+    names = newNames;
+    lastResyncNanos = System.nanoTime();
+    return new ArrayList<ObjectName>(newNames);
+  }
+
+  synchronized void abortResync() {
+    pendingEvents = null;
+  }
+
+  /**
+   * The names, empty before the first resync and after notifications were lost.
+   */
+  synchronized List<ObjectName> names() {
+    return names == null ? new ArrayList<ObjectName>() : new ArrayList<ObjectName>(names);
+  }
+
+  public synchronized void registered(ObjectName name) {
+    if (pendingEvents != null) {
+      pendingEvents.add(new Event(name, true));
+    }
+    if (names != null && matches(name)) {
+      names.add(name);
+    }
+  }
+
+  public synchronized void unregistered(ObjectName name) {
+    if (pendingEvents != null) {
+      pendingEvents.add(new Event(name, false));
+    }
+    if (names != null) {
+      names.remove(name);
+    }
+  }
+
+  public synchronized void registrationsLost() {
+    names = null;
+  }
+
+  private boolean matches(ObjectName name) {
+    boolean whitelisted = whitelistObjectNames.isEmpty();
+    for (ObjectName pattern : whitelistObjectNames) {
+      if (pattern == null || pattern.apply(name)) {
+        whitelisted = true;
+        break;
+      }
+    }
+    if (!whitelisted) {
+      return false;
+    }
+    for (ObjectName pattern : blacklistObjectNames) {
+      if (pattern.apply(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class Event {
+    final ObjectName name;
+    final boolean registered;
+
+    Event(ObjectName name, boolean registered) {
+      this.name = name;
+      this.registered = registered;
+    }
+  }
+}
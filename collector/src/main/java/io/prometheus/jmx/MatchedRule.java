@@ -0,0 +1,86 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+
+import java.util.List;
+
+/**
+ * The result of applying the rules to a bean attribute: everything needed to
+ * produce a sample except for the scraped value.
+ */
+class MatchedRule {
+  /**
+   * No rule matched, or the matching rule doesn't export anything.
+   */
+  static final MatchedRule UNMATCHED = new MatchedRule(null, null, null, null, null, null);
+
+  /**
+   * What an attribute of a Dropwizard timer or histogram gives a SUMMARY.
+   */
+  enum SummaryPart {
+    /** A percentile, exported with a quantile label. */
+    QUANTILE,
+    /** The number of observations, exported as _count. */
+    COUNT,
+    /** The mean, exported times the count as _sum. */
+    MEAN
+  }
+
+  /** The rule that matched, or null if none did. */
+  final Rule rule;
+  /** The metric family the sample belongs to, only different from the name for summaries. */
+  final String familyName;
+  final String name;
+  final String help;
+  final List<String> labelNames;
+  final List<String> labelValues;
+  final Collector.Type type;
+  final double valueFactor;
+  /** The value set by the rule, or null to use the scraped value. */
+  final Double value;
+  /** How many scrapes a sample can be repeated for before the attribute is read again. */
+  final int refreshEvery;
+  /** The part of a summary the attribute gives, or null if the rule isn't for summaries. */
+  final SummaryPart summaryPart;
+  /** Whether the rule matched but dropped the sample, as its value isn't a number. */
+  final boolean valueNotANumber;
+
+  MatchedRule(Rule rule, String name, String help, List<String> labelNames, List<String> labelValues, Double value) {
+    this(rule, name, name, help, labelNames, labelValues, value, null);
+  }
+
+  MatchedRule(Rule rule, String familyName, String name, String help, List<String> labelNames, List<String> labelValues,
+              Double value, SummaryPart summaryPart) {
+    this(rule, familyName, name, help, labelNames, labelValues, value, summaryPart, false);
+  }
+
+  private MatchedRule(Rule rule, String familyName, String name, String help, List<String> labelNames,
+                      List<String> labelValues, Double value, SummaryPart summaryPart, boolean valueNotANumber) {
+    this.rule = rule;
+    this.familyName = familyName;
+    this.name = name;
+    this.help = help;
+    this.labelNames = labelNames;
+    this.labelValues = labelValues;
+    this.type = rule != null ? rule.type : Collector.Type.UNTYPED;
+    // Counts are numbers of observations, whatever unit the observations are in.
+    this.valueFactor = rule != null && summaryPart != SummaryPart.COUNT ? rule.valueFactor : 1.0;
+    this.value = value;
+    // Unmatched attributes have nothing to refresh.
+    this.refreshEvery = name != null ? rule.refreshEvery : Integer.MAX_VALUE;
+    this.summaryPart = summaryPart;
+    this.valueNotANumber = valueNotANumber;
+  }
+
+  /**
+   * The rule matched, but the value it sets isn't a number. Exports nothing
+   * like UNMATCHED, but keeps the rule so each scrape can count the drop.
+   */
+  static MatchedRule valueNotANumber(Rule rule) {
+    return new MatchedRule(rule, null, null, null, null, null, null, null, true);
+  }
+
+  boolean isUnmatched() {
+    return name == null;
+  }
+}
@@ -0,0 +1,69 @@
+package io.prometheus.jmx;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rule input and results per bean attribute, so steady-state scrapes don't
+ * build any strings or evaluate any regexes.
+ *
+ * Entries that weren't used for a number of scrapes are evicted, so beans
+ * that were unregistered or stopped matching the whitelist don't accumulate.
+ * The collector picks the number so that attributes that are deliberately
+ * left unread for a while, by refreshEvery or bean quarantine, keep theirs.
+ */
+class MatchedRulesCache {
+  private final ConcurrentMap<AttributeKey, Entry> entries = new ConcurrentHashMap<AttributeKey, Entry>();
+
+  /**
+   * The entry for the attribute, created if it isn't cached yet.
+   */
+  Entry get(String domain, KeyPropertyList beanProperties, AttributePath attrKeys, String attrName,
+            String attrDescription, long scrape) {
+    AttributeKey key = new AttributeKey(domain, beanProperties, attrKeys, attrName, attrDescription);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(domain, beanProperties, attrKeys, attrName, attrDescription);
+      entries.put(key, entry);
+    }
+    entry.lastScrape = scrape;
+    return entry;
+  }
+
+  /**
+   * Evict the entries that weren't used by any of the given number of scrapes up to this one.
+   */
+  void evictStaleEntries(long scrape, int keepScrapes) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().lastScrape <= scrape - keepScrapes) {
+        it.remove();
+      }
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  static class Entry {
+    /** domain&lt;beanProperties&gt;&lt;attrKeys&gt;, the input of the rules up to the attribute name. */
+    final String beanName;
+    /** The default help. attrDescription tends not to be useful, so give the fully qualified name too. */
+    final String help;
+    /** The result of the rules, or null if it depends on the value and isn't cached. */
+    volatile MatchedRule matchedRule;
+    volatile long lastScrape;
+
+    Entry(String domain, KeyPropertyList beanProperties, AttributePath attrKeys, String attrName, String attrDescription) {
+      this.beanName = domain + angleBrackets(beanProperties.toString()) + angleBrackets(attrKeys.toString());
+      this.help = attrDescription + " (" + beanName + attrName + ")";
+    }
+
+    // [] and () are special in regexes, so swtich to <>.
+    private static String angleBrackets(String s) {
+      return "<" + s.substring(1, s.length() - 1) + ">";
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Metric and label names by the raw string they were made from.
+ *
+ * Most names are the same on every scrape, so this saves sanitizing them
+ * again. Rules can build names from anything in the input, so each map is
+ * cleared once it grows past a limit rather than growing without bound.
+ */
+class NameCache {
+  private final int maxSize;
+  private final ConcurrentMap<String, String> safeNames = new ConcurrentHashMap<String, String>();
+  private final ConcurrentMap<String, String> lowercaseSafeNames = new ConcurrentHashMap<String, String>();
+  private final ConcurrentMap<String, String> snakeCaseNames = new ConcurrentHashMap<String, String>();
+
+  NameCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  String safeName(String raw, boolean lowercase) {
+    ConcurrentMap<String, String> names = lowercase ? lowercaseSafeNames : safeNames;
+    String name = names.get(raw);
+    if (name == null) {
+      name = safeName(raw);
+      if (lowercase) {
+        name = name.toLowerCase();
+      }
+      put(names, raw, name);
+    }
+    return name;
+  }
+
+  String snakeCase(String attrName) {
+    String name = snakeCaseNames.get(attrName);
+    if (name == null) {
+      name = snakeCase0(attrName);
+      put(snakeCaseNames, attrName, name);
+    }
+    return name;
+  }
+
+  private void put(ConcurrentMap<String, String> names, String raw, String name) {
+    if (names.size() >= maxSize) {
+      names.clear();
+    }
+    names.put(raw, name);
+  }
+
+  /**
+   * Change invalid chars to underscore, and merge underscores.
+   *
+   * Returns the input itself if it's already safe.
+   */
+  static String safeName(String s) {
+    int length = s.length();
+    boolean prevCharIsUnderscore = false;
+    int i = 0;
+    for (; i < length; i++) {
+      char c = s.charAt(i);
+      if (!isSafeChar(c) || (c == '_' && prevCharIsUnderscore)) {
+        break;
+      }
+      prevCharIsUnderscore = c == '_';
+    }
+    if (i == length) {
+      return s;
+    }
+
+    StringBuilder safe = new StringBuilder(length);
+    safe.append(s, 0, i);
+    for (; i < length; i++) {
+      char c = s.charAt(i);
+      if (!isSafeChar(c)) {
+        c = '_';
+      }
+      if (c == '_' && prevCharIsUnderscore) {
+        continue;
+      }
+      safe.append(c);
+      prevCharIsUnderscore = c == '_';
+    }
+    return safe.toString();
+  }
+
+  private static boolean isSafeChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == ':' || c == '_';
+  }
+
+  /**
+   * anAttrName to an_attr_name, by putting an underscore between a lowercase
+   * letter or digit and an uppercase letter, then lowercasing.
+   */
+  private static String snakeCase0(String s) {
+    StringBuilder snake = new StringBuilder(s.length() + 8);
+    char prev = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 'A' && c <= 'Z' && ((prev >= 'a' && prev <= 'z') || (prev >= '0' && prev <= '9'))) {
+        snake.append('_');
+      }
+      snake.append(c);
+      prev = c;
+    }
+    return snake.toString().toLowerCase();
+  }
+}
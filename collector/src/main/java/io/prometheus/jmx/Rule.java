@@ -15,4 +15,12 @@ public class Rule {
   Collector.Type type = Collector.Type.UNTYPED;
   ArrayList<String> labelNames;
   ArrayList<String> labelValues;
+  // Whether the result of this rule depends only on the bean and attribute name, not the value.
+  boolean cache = true;
+  // Whether a match is cached only when the pattern ended before the value, rather than as cache says.
+  boolean cacheIfMatchEndsBeforeValue;
+  // Text every match contains, so inputs without it can skip the regex. Null if not known.
+  String literal;
+  // Read attributes matched by this rule only every this many scrapes, repeating the last value in between.
+  int refreshEvery = 1;
 }
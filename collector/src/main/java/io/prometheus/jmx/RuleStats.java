@@ -0,0 +1,130 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Counter;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How often each rule is evaluated and matches, how often its cached result
+ * is used instead, how long matching takes, and how many samples it drops. Owned by a collector rather than registered,
+ * and started over when the config is reloaded, as the rules may change.
+ *
+ * Series are labelled with the position of the rule and its pattern, and
+ * resolved up front so counting doesn't look up any labels.
+ */
+class RuleStats {
+  static final String VALUE_NOT_A_NUMBER = "value_not_a_number";
+  static final String UNSUPPORTED_TYPE = "unsupported_type";
+
+  private final Counter evaluations;
+  private final Counter matches;
+  private final Counter cacheHits;
+  private final Counter matchSeconds;
+  private final Counter droppedSamples;
+  private final Map<Rule, Entry> entries = new IdentityHashMap<Rule, Entry>();
+
+  static class Entry {
+    private final Counter.Child evaluations;
+    private final Counter.Child matches;
+    private final Counter.Child cacheHits;
+    private final Counter.Child matchSeconds;
+    private final Counter.Child valueNotANumber;
+    private final Counter.Child unsupportedType;
+
+    private Entry(RuleStats stats, String rule, String pattern) {
+      evaluations = stats.evaluations.labels(rule, pattern);
+      matches = stats.matches.labels(rule, pattern);
+      cacheHits = stats.cacheHits.labels(rule, pattern);
+      matchSeconds = stats.matchSeconds.labels(rule, pattern);
+      valueNotANumber = stats.droppedSamples.labels(rule, pattern, VALUE_NOT_A_NUMBER);
+      unsupportedType = stats.droppedSamples.labels(rule, pattern, UNSUPPORTED_TYPE);
+    }
+
+    void evaluated(long durationNanos, boolean matched) {
+      evaluations.inc();
+      matchSeconds.inc(durationNanos / 1.0E9);
+      if (matched) {
+        matches.inc();
+      }
+    }
+
+    void cacheHit() {
+      cacheHits.inc();
+    }
+
+    void valueNotANumber() {
+      valueNotANumber.inc();
+    }
+
+    void unsupportedType() {
+      unsupportedType.inc();
+    }
+  }
+
+  RuleStats(List<Rule> rules) {
+    evaluations = Counter.build()
+        .name("jmx_scrape_rule_evaluations_total")
+        .labelNames("rule", "pattern")
+        .help("Number of times a rule was tried against a bean attribute whose result wasn't cached.").create();
+    matches = Counter.build()
+        .name("jmx_scrape_rule_matches_total")
+        .labelNames("rule", "pattern")
+        .help("Number of times a rule matched a bean attribute whose result wasn't cached.").create();
+    cacheHits = Counter.build()
+        .name("jmx_scrape_rule_cache_hits_total")
+        .labelNames("rule", "pattern")
+        .help("Number of times the cached result of a rule was used for a bean attribute instead of trying the rules.").create();
+    matchSeconds = Counter.build()
+        .name("jmx_scrape_rule_match_seconds_total")
+        .labelNames("rule", "pattern")
+        .help("Time spent trying a rule against bean attributes, in seconds.").create();
+    droppedSamples = Counter.build()
+        .name("jmx_scrape_rule_dropped_samples_total")
+        .labelNames("rule", "pattern", "reason")
+        .help("Number of values a rule matched but couldn't export.").create();
+    for (int i = 0; i < rules.size(); i++) {
+      Rule rule = rules.get(i);
+      entries.put(rule, new Entry(this, String.valueOf(i), pattern(rule)));
+    }
+  }
+
+  /**
+   * The stats of one of the rules the stats were created for.
+   */
+  Entry get(Rule rule) {
+    return entries.get(rule);
+  }
+
+  // The pattern as configured, without what the config wrapped it in.
+  private static String pattern(Rule rule) {
+    if (rule.pattern == null) {
+      return "";
+    }
+    String pattern = rule.pattern.pattern();
+    return pattern.substring("^.*(?:".length(), pattern.length() - ")(.*)$".length());
+  }
+
+  List<MetricFamilySamples> collect() {
+    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+    mfsList.addAll(evaluations.collect());
+    mfsList.addAll(matches.collect());
+    mfsList.addAll(cacheHits.collect());
+    mfsList.addAll(matchSeconds.collect());
+    mfsList.addAll(droppedSamples.collect());
+    return mfsList;
+  }
+
+  List<MetricFamilySamples> describe() {
+    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+    mfsList.addAll(evaluations.describe());
+    mfsList.addAll(matches.describe());
+    mfsList.addAll(cacheHits.describe());
+    mfsList.addAll(matchSeconds.describe());
+    mfsList.addAll(droppedSamples.describe());
+    return mfsList;
+  }
+}
@@ -0,0 +1,15 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.Type;
+
+import java.util.List;
+
+/**
+ * Where a scrape puts its samples, grouped by metric family.
+ */
+interface SampleSink {
+  /**
+   * The type and help of a family are taken from its first sample.
+   */
+  void add(String familyName, Type type, String help, String sampleName, List<String> labelNames, List<String> labelValues, double value);
+}
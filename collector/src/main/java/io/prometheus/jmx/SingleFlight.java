@@ -0,0 +1,45 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs a task, or if it's already running in another thread waits for and shares its result.
+ */
+class SingleFlight<T> {
+  private FutureTask<T> inFlight;
+
+  T run(Callable<T> callable) {
+    FutureTask<T> task;
+    boolean owner = false;
+    synchronized (this) {
+      task = inFlight;
+      if (task == null) {
+        task = new FutureTask<T>(callable);
+        inFlight = task;
+        owner = true;
+      }
+    }
+    if (owner) {
+      try {
+        task.run();
+      } finally {
+        synchronized (this) {
+          inFlight = null;
+        }
+      }
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The last samples of attributes matched by rules with refreshEvery, which
+ * are read only every so many scrapes and repeated in between.
+ *
+ * An attribute is only as slow as the fastest rule used for any of its
+ * values, and results that depend on the value can't be repeated, so those
+ * attributes are read every time. Which of the scrapes reads an attribute
+ * depends on its hash, so that the reads are spread out rather than all
+ * falling on the same scrape. As with UnusedAttributes, some attributes
+ * are always read, see AttributeKey.forAttribute.
+ */
+class SlowAttributes {
+  private final ConcurrentMap<AttributeKey, Entry> entries = new ConcurrentHashMap<AttributeKey, Entry>();
+
+  static class Sample {
+    final MatchedRule matchedRule;
+    final double value;
+
+    Sample(MatchedRule matchedRule, double value) {
+      this.matchedRule = matchedRule;
+      this.value = value;
+    }
+  }
+
+  private static class Entry {
+    final int hash;
+    // What the last scrape to read the attribute made of it.
+    int refreshEvery = 1;
+    List<Sample> samples;
+    // What the scrape reading the attribute has recorded so far.
+    long recordingScrape;
+    int recordingRefreshEvery;
+    List<Sample> recording;
+    volatile long skippedScrape;
+    volatile long lastScrape;
+
+    Entry(int hash) {
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Whether the scrape can repeat the last samples of the attribute rather than read it.
+   */
+  boolean skip(String domain, KeyPropertyList beanProperties, String attrName, long scrape) {
+    Entry entry = entries.get(AttributeKey.forAttribute(domain, beanProperties, attrName));
+    if (entry == null) {
+      return false;
+    }
+    synchronized (entry) {
+      if (entry.samples == null || entry.refreshEvery <= 1
+          || (scrape + (entry.hash & Integer.MAX_VALUE)) % entry.refreshEvery == 0) {
+        return false;
+      }
+    }
+    entry.skippedScrape = scrape;
+    entry.lastScrape = scrape;
+    return true;
+  }
+
+  /**
+   * Record what the rules made of a value of an attribute that was read.
+   *
+   * @param attrName the name of the bean attribute, not of the key within composite data.
+   * @param refreshEvery how many scrapes the result can be repeated for.
+   * @param exported the result, or null if nothing was exported.
+   */
+  void record(String domain, KeyPropertyList beanProperties, String attrName, long scrape,
+              int refreshEvery, MatchedRule exported, double value) {
+    AttributeKey key = AttributeKey.forAttribute(domain, beanProperties, attrName);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(key.hashCode());
+      Entry existing = entries.putIfAbsent(key, entry);
+      if (existing != null) {
+        entry = existing;
+      }
+    }
+    synchronized (entry) {
+      if (entry.recordingScrape != scrape) {
+        entry.recordingScrape = scrape;
+        entry.recordingRefreshEvery = Integer.MAX_VALUE;
+        entry.recording = new ArrayList<Sample>();
+      }
+      entry.recordingRefreshEvery = Math.min(entry.recordingRefreshEvery, refreshEvery);
+      if (exported != null) {
+        entry.recording.add(new Sample(exported, value));
+      }
+    }
+    entry.lastScrape = scrape;
+  }
+
+  /**
+   * Keep the samples recorded by the scrape for the following ones, and
+   * drop attributes that the last two scrapes neither read nor skipped.
+   *
+   * @return the samples to repeat for the attributes the scrape skipped.
+   */
+  List<Sample> finishScrape(long scrape) {
+    List<Sample> repeated = new ArrayList<Sample>();
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.lastScrape < scrape - 1) {
+        it.remove();
+        continue;
+      }
+      synchronized (entry) {
+        if (entry.recordingScrape == scrape) {
+          entry.samples = entry.recording;
+          // Nothing to repeat, so no reason not to read it.
+          entry.refreshEvery = entry.samples.isEmpty() ? 1 : entry.recordingRefreshEvery;
+          entry.recording = null;
+        } else if (entry.skippedScrape == scrape) {
+          repeated.addAll(entry.samples);
+        }
+      }
+    }
+    return repeated;
+  }
+
+  void reset() {
+    entries.clear();
+  }
+
+  int size() {
+    return entries.size();
+  }
+}
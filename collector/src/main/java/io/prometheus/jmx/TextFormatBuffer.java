@@ -0,0 +1,205 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The samples of a scrape, written in the Prometheus text exposition format,
+ * version 0.0.4, or turned into MetricFamilySamples.
+ *
+ * Each family keeps its samples in arrays as they come in, so no Sample
+ * objects are kept. The label lists are referenced rather than copied, so
+ * they must not change afterwards, which holds for the lists of rule
+ * results. Once filled the buffer is only read, so one scrape can be shared
+ * by requests wanting either form. The output is the same as
+ * TextFormat.write004 of the same samples.
+ */
+class TextFormatBuffer implements SampleSink {
+  private final Map<String, Family> families = new HashMap<String, Family>();
+
+  public void add(String familyName, Type type, String help, String sampleName, List<String> labelNames, List<String> labelValues, double value) {
+    Family family = families.get(familyName);
+    if (family == null) {
+      family = new Family(familyName, type, help);
+      families.put(familyName, family);
+    }
+    family.add(sampleName, labelNames, labelValues, value);
+  }
+
+  void addAll(List<MetricFamilySamples> mfsList) {
+    for (MetricFamilySamples mfs : mfsList) {
+      for (MetricFamilySamples.Sample sample : mfs.samples) {
+        add(mfs.name, mfs.type, mfs.help, sample.name, sample.labelNames, sample.labelValues, sample.value);
+      }
+    }
+  }
+
+  void addAll(TextFormatBuffer other) {
+    for (Family family : other.families.values()) {
+      for (int i = 0; i < family.size; i++) {
+        add(family.name, family.type, family.help, family.sampleNames[i], family.labelNames(i), family.labelValues(i), family.values[i]);
+      }
+    }
+  }
+
+  List<MetricFamilySamples> toMetricFamilySamples() {
+    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(families.size());
+    for (Family family : families.values()) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(family.size);
+      for (int i = 0; i < family.size; i++) {
+        samples.add(new MetricFamilySamples.Sample(family.sampleNames[i], family.labelNames(i), family.labelValues(i), family.values[i]));
+      }
+      mfsList.add(new MetricFamilySamples(family.name, family.type, family.help, samples));
+    }
+    return mfsList;
+  }
+
+  void writeTo(Writer writer) throws IOException {
+    writeTo(writer, Collections.<String>emptySet());
+  }
+
+  /**
+   * Write the families with the given names, or all of them if none are given.
+   */
+  void writeTo(Writer writer, Set<String> names) throws IOException {
+    for (Family family : families.values()) {
+      if (!names.isEmpty() && !names.contains(family.name)) {
+        continue;
+      }
+      writer.write("# HELP ");
+      writer.write(family.name);
+      writer.write(' ');
+      writeEscapedHelp(writer, family.help);
+      writer.write('\n');
+
+      writer.write("# TYPE ");
+      writer.write(family.name);
+      writer.write(' ');
+      writer.write(typeString(family.type));
+      writer.write('\n');
+
+      for (int i = 0; i < family.size; i++) {
+        writer.write(family.sampleNames[i]);
+        List<String> labelNames = family.labelNames(i);
+        if (labelNames.size() > 0) {
+          List<String> labelValues = family.labelValues(i);
+          writer.write('{');
+          for (int j = 0; j < labelNames.size(); ++j) {
+            writer.write(labelNames.get(j));
+            writer.write("=\"");
+            writeEscapedLabelValue(writer, labelValues.get(j));
+            writer.write("\",");
+          }
+          writer.write('}');
+        }
+        writer.write(' ');
+        writer.write(Collector.doubleToGoString(family.values[i]));
+        writer.write('\n');
+      }
+    }
+  }
+
+  private static void writeEscapedHelp(Writer writer, String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '\\':
+          writer.append("\\\\");
+          break;
+        case '\n':
+          writer.append("\\n");
+          break;
+        default:
+          writer.append(c);
+      }
+    }
+  }
+
+  private static void writeEscapedLabelValue(Writer writer, String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '\\':
+          writer.append("\\\\");
+          break;
+        case '\"':
+          writer.append("\\\"");
+          break;
+        case '\n':
+          writer.append("\\n");
+          break;
+        default:
+          writer.append(c);
+      }
+    }
+  }
+
+  private static String typeString(Type t) {
+    switch (t) {
+      case GAUGE:
+        return "gauge";
+      case COUNTER:
+        return "counter";
+      case SUMMARY:
+        return "summary";
+      case HISTOGRAM:
+        return "histogram";
+      default:
+        return "untyped";
+    }
+  }
+
+  private static class Family {
+    final String name;
+    final Type type;
+    final String help;
+
+    int size;
+    String[] sampleNames = new String[4];
+    Object[] labelNames = new Object[4];
+    Object[] labelValues = new Object[4];
+    double[] values = new double[4];
+
+    Family(String name, Type type, String help) {
+      this.name = name;
+      this.type = type;
+      this.help = help;
+    }
+
+    void add(String sampleName, List<String> names, List<String> labels, double value) {
+      if (size == values.length) {
+        int capacity = size * 2;
+        sampleNames = Arrays.copyOf(sampleNames, capacity);
+        labelNames = Arrays.copyOf(labelNames, capacity);
+        labelValues = Arrays.copyOf(labelValues, capacity);
+        values = Arrays.copyOf(values, capacity);
+      }
+      sampleNames[size] = sampleName;
+      labelNames[size] = names;
+      labelValues[size] = labels;
+      values[size] = value;
+      size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> labelNames(int index) {
+      return (List<String>) labelNames[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> labelValues(int index) {
+      return (List<String>) labelValues[index];
+    }
+  }
+}
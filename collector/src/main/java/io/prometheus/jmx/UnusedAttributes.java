@@ -0,0 +1,51 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Attributes the rules will never export, so the scraper can stop reading them.
+ *
+ * An attribute is unused once all of its values were left out by the rules
+ * in a way that doesn't depend on the value, which is when the rule result
+ * would be cached. Everything is forgotten periodically, in case beans
+ * were replaced by ones with different attributes. See
+ * AttributeKey.forAttribute for which attributes are always read.
+ */
+class UnusedAttributes {
+  private final ConcurrentMap<AttributeKey, Boolean> used = new ConcurrentHashMap<AttributeKey, Boolean>();
+  private volatile long resetNanos = System.nanoTime();
+
+  boolean isUnused(String domain, KeyPropertyList beanProperties, String attrName) {
+    return Boolean.FALSE.equals(used.get(AttributeKey.forAttribute(domain, beanProperties, attrName)));
+  }
+
+  /**
+   * Record whether a value of an attribute was exported, or could be with another value.
+   *
+   * @param attrName the name of the bean attribute, not of the key within composite data.
+   */
+  void record(String domain, KeyPropertyList beanProperties, String attrName, boolean exported) {
+    AttributeKey key = AttributeKey.forAttribute(domain, beanProperties, attrName);
+    if (exported) {
+      used.put(key, Boolean.TRUE);
+    } else {
+      used.putIfAbsent(key, Boolean.FALSE);
+    }
+  }
+
+  void resetIfOlderThan(long intervalNanos) {
+    if (System.nanoTime() - resetNanos >= intervalNanos) {
+      reset();
+    }
+  }
+
+  void reset() {
+    used.clear();
+    resetNanos = System.nanoTime();
+  }
+
+  int size() {
+    return used.size();
+  }
+}
@@ -0,0 +1,33 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface ArrayAttributesMBean {
+    // Like ThreadMXBean.getThreadCpuTime(long[]), which people turn into attributes.
+    public long[] getThreadCpuTimes();
+    public double[] getLoads();
+    public String[] getNames();
+}
+
+class ArrayAttributes implements ArrayAttributesMBean {
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName("arrays:type=Arrays");
+        ArrayAttributesMBean mbean = new ArrayAttributes();
+        mbs.registerMBean(mbean, mbeanName);
+    }
+
+    public long[] getThreadCpuTimes() {
+        return new long[]{100, 200, 300};
+    }
+
+    public double[] getLoads() {
+        return new double[]{0.5, 1.5};
+    }
+
+    public String[] getNames() {
+        return new String[]{"a", "b"};
+    }
+}
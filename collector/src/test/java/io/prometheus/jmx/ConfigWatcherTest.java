@@ -0,0 +1,93 @@
+package io.prometheus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class ConfigWatcherTest {
+
+    private static final String CONFIG = "---\nrules:\n- pattern: `^mutable<type=Value><>Value`\n  name: ".replace('`', '"');
+
+    private final List<Config> reloaded = new ArrayList<Config>();
+    private final ConfigWatcher.Listener listener = new ConfigWatcher.Listener() {
+        public void configChanged(Config config) {
+            reloaded.add(config);
+        }
+    };
+
+    @Test(timeout = 10000)
+    public void testChangedFileIsReloaded() throws Exception {
+        Path dir = Files.createTempDirectory("jmx_exporter");
+        File configFile = dir.resolve("config.yaml").toFile();
+        writeFile(configFile, CONFIG + "foo");
+        ConfigWatcher watcher = new ConfigWatcher(configFile, listener, 0);
+        try {
+            writeFile(configFile, CONFIG + "bar");
+            while (!watcher.processChanges()) {
+            }
+            assertEquals("bar", reloaded.get(reloaded.size() - 1).rules.get(0).name);
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testBrokenConfigIsCountedAndNotPassedOn() throws Exception {
+        Path dir = Files.createTempDirectory("jmx_exporter");
+        File configFile = dir.resolve("config.yaml").toFile();
+        writeFile(configFile, CONFIG + "foo");
+        ConfigWatcher watcher = new ConfigWatcher(configFile, listener, 0);
+        try {
+            double failures = Config.configReloadFailure.get();
+            writeFile(configFile, "---\nrules:\n- name: foo");
+            while (!watcher.processChanges()) {
+            }
+            assertTrue(Config.configReloadFailure.get() > failures);
+            assertTrue(reloaded.isEmpty());
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSwappedSymlinkIsReloaded() throws Exception {
+        // Laid out like a Kubernetes ConfigMap volume.
+        Path dir = Files.createTempDirectory("jmx_exporter");
+        Path first = Files.createDirectory(dir.resolve("..first"));
+        Path second = Files.createDirectory(dir.resolve("..second"));
+        writeFile(first.resolve("config.yaml").toFile(), CONFIG + "foo");
+        writeFile(second.resolve("config.yaml").toFile(), CONFIG + "bar");
+        Files.createSymbolicLink(dir.resolve("..data"), first.getFileName());
+        Path configFile = Files.createSymbolicLink(dir.resolve("config.yaml"), Paths.get("..data", "config.yaml"));
+
+        ConfigWatcher watcher = new ConfigWatcher(configFile.toFile(), listener, 0);
+        try {
+            Files.createSymbolicLink(dir.resolve("..data_tmp"), second.getFileName());
+            Files.move(dir.resolve("..data_tmp"), dir.resolve("..data"), StandardCopyOption.ATOMIC_MOVE);
+            while (!watcher.processChanges()) {
+            }
+            assertEquals(1, reloaded.size());
+            assertEquals("bar", reloaded.get(0).rules.get(0).name);
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    private static void writeFile(File file, String contents) throws Exception {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.prometheus.jmx;
+
+import static org.junit.Assert.assertEquals;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class DuplicateSampleFilterTest {
+
+    private static Map<String, Double> add(DuplicateSampleFilter.Policy policy) {
+        MetricFamilySamplesSink sink = new MetricFamilySamplesSink();
+        DuplicateSampleFilter filter = new DuplicateSampleFilter(sink, policy);
+        List<String> names = Arrays.asList("a");
+        // Enough label sets for the tables to grow, each of them twice with equal but distinct lists.
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 100; i++) {
+                filter.add("foo", Type.GAUGE, "help", "foo", names, Arrays.asList("v" + i), i);
+            }
+        }
+        filter.add("foo", Type.GAUGE, "help", "foo", names, Arrays.asList("single"), 7);
+        filter.add("foo", Type.GAUGE, "help", "foo", Arrays.asList("b"), Arrays.asList("v1"), 3);
+        filter.flush();
+        assertEquals(100, filter.getDuplicates());
+
+        Map<String, Double> values = new HashMap<String, Double>();
+        for (MetricFamilySamples mfs : sink.toList()) {
+            for (MetricFamilySamples.Sample sample : mfs.samples) {
+                values.put(sample.labelNames.get(0) + "=" + sample.labelValues.get(0), sample.value);
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void testFirst() {
+        Map<String, Double> values = add(DuplicateSampleFilter.Policy.FIRST);
+        assertEquals(102, values.size());
+        assertEquals(5.0, values.get("a=v5"), .001);
+        assertEquals(7.0, values.get("a=single"), .001);
+        assertEquals(3.0, values.get("b=v1"), .001);
+    }
+
+    @Test
+    public void testSum() {
+        Map<String, Double> values = add(DuplicateSampleFilter.Policy.SUM);
+        assertEquals(102, values.size());
+        assertEquals(10.0, values.get("a=v5"), .001);
+        assertEquals(7.0, values.get("a=single"), .001);
+    }
+
+    @Test
+    public void testDrop() {
+        Map<String, Double> values = add(DuplicateSampleFilter.Policy.DROP);
+        assertEquals(2, values.size());
+        assertEquals(7.0, values.get("a=single"), .001);
+        assertEquals(3.0, values.get("b=v1"), .001);
+    }
+}
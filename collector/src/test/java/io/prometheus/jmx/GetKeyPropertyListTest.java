@@ -4,6 +4,8 @@ import org.junit.Test;
 
 import javax.management.ObjectName;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
 
@@ -67,6 +69,45 @@ public class GetKeyPropertyListTest {
                 "name", "\"seda://endpointName\\?concurrentConsumers=8&size=50000\"");
     }
 
+    @Test
+    public void testSameAsRegex() throws Throwable {
+        // The regex getKeyPropertyList used to be based on.
+        Pattern propertyPattern = Pattern.compile(
+                "([^,=:\\*\\?]+)=(\"(?:[^\\\\\"]|\\\\\\\\|\\\\n|\\\\\"|\\\\\\?|\\\\\\*)*\"|[^,=:\"]*)");
+        Random random = new Random(42);
+        String chars = "ab1 ,=:\"*?\\\n/";
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder name = new StringBuilder("domain:");
+            int properties = 1 + random.nextInt(4);
+            for (int p = 0; p < properties; p++) {
+                StringBuilder value = new StringBuilder();
+                int valueLength = random.nextInt(6);
+                for (int c = 0; c < valueLength; c++) {
+                    value.append(chars.charAt(random.nextInt(chars.length())));
+                }
+                String quoted = ObjectName.quote(value.toString());
+                String unquoted = value.toString().replaceAll("[,=:\"*?\\n]", "x");
+                name.append(p == 0 ? "" : ",").append("key").append(p).append('=')
+                        .append(random.nextBoolean() || unquoted.length() == 0 ? quoted : unquoted);
+            }
+            ObjectName objectName = new ObjectName(name.toString());
+
+            LinkedHashMap<String, String> expected = new LinkedHashMap<String, String>();
+            String remaining = objectName.getKeyPropertyListString();
+            Matcher match = propertyPattern.matcher(remaining);
+            while (match.lookingAt()) {
+                expected.put(match.group(1), match.group(2));
+                remaining = remaining.substring(match.end());
+                if (remaining.startsWith(",")) {
+                    remaining = remaining.substring(1);
+                }
+                match.reset(remaining);
+            }
+            assertEquals(objectName.toString(), new ArrayList<Map.Entry<String, String>>(expected.entrySet()),
+                    new ArrayList<Map.Entry<String, String>>(JmxScraper.getKeyPropertyList(objectName).entrySet()));
+        }
+    }
+
     private void assertSameElementsAndOrder(LinkedHashMap<?, ?> actual, Object... expected) {
         assert expected.length % 2 == 0;
         List<Map.Entry<?,?>> actualList = new ArrayList<Map.Entry<?, ?>>(actual.entrySet());
@@ -2,12 +2,15 @@ package io.prometheus.jmx;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.lang.management.ManagementFactory;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -19,6 +22,7 @@ import org.junit.BeforeClass;
 public class JmxCollectorTest {
 
     CollectorRegistry registry;
+    static MutableValue mutableValue;
 
     @BeforeClass
     public static void OneTimeSetUp() throws Exception {
@@ -31,6 +35,10 @@ public class JmxCollectorTest {
         Hadoop.registerBean(mbs);
         TomcatServlet.registerBean(mbs);
         Bool.registerBean(mbs);
+        PartiallyReadable.registerBean(mbs);
+        mutableValue = MutableValue.registerBean(mbs);
+        KafkaTimer.registerBean(mbs);
+        ArrayAttributes.registerBean(mbs);
     }
 
     @Before
@@ -152,6 +160,104 @@ public class JmxCollectorTest {
       assertEquals(200, registry.getSampleValue("hadoop_DataNode_replaceBlockOpMinTime", new String[]{"name"}, new String[]{"DataNodeActivity-ams-hdd001-50010"}), .001);
     }
 
+    @Test
+    public void testScrapeConcurrency() throws Exception {
+      JmxCollector jc = new JmxCollector("---\nscrapeConcurrency: 4").register(registry);
+
+      assertNotNull(registry.getSampleValue("java_lang_OperatingSystem_ProcessCpuTime", new String[]{}, new String[]{}));
+      assertEquals(100, registry.getSampleValue("org_apache_cassandra_concurrent_CONSISTENCY_MANAGER_ActiveCount", new String[]{}, new String[]{}), .001);
+      assertEquals(.2, registry.getSampleValue("org_apache_cassandra_metrics_Compaction_Value", new String[]{"name"}, new String[]{"CompletedTasks"}), .001);
+      assertEquals(200, registry.getSampleValue("hadoop_DataNode_replaceBlockOpMinTime", new String[]{"name"}, new String[]{"DataNodeActivity-ams-hdd001-50010"}), .001);
+      assertEquals(1.0, registry.getSampleValue("boolean_Test_True", new String[]{}, new String[]{}), .001);
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void testScrapeConcurrencyMustBePositive() throws Exception {
+      new JmxCollector("---\nscrapeConcurrency: 0");
+    }
+
+    @Test
+    public void testBackgroundScrape() throws Exception {
+      JmxCollector jc = new JmxCollector("---\nbackgroundScrapeIntervalSeconds: 60").register(registry);
+
+      assertEquals(200, registry.getSampleValue("hadoop_DataNode_replaceBlockOpMinTime", new String[]{"name"}, new String[]{"DataNodeActivity-ams-hdd001-50010"}), .001);
+      // The second request is served from the same snapshot.
+      Thread.sleep(10);
+      assertTrue(registry.getSampleValue("jmx_scrape_snapshot_age_seconds", new String[]{}, new String[]{}) > 0);
+      assertEquals(200, registry.getSampleValue("hadoop_DataNode_replaceBlockOpMinTime", new String[]{"name"}, new String[]{"DataNodeActivity-ams-hdd001-50010"}), .001);
+    }
+
+    @Test
+    public void testBackgroundScrapeFollowsReload() throws Exception {
+      String config = "---\nbackgroundScrapeIntervalSeconds: 3600\nwhitelistObjectNames:\n- mutable:*\nrules:\n- pattern: `^mutable<type=Value><>Value`\n  name: ";
+      JmxCollector jc = new JmxCollector((config + "foo").replace('`','"')).register(registry);
+      try {
+        assertNotNull(registry.getSampleValue("foo", new String[]{}, new String[]{}));
+
+        // A new interval starts over with a scrape using the new rules, rather than serve the old snapshot for an hour.
+        jc.configChanged(Config.from((config.replace("3600", "1800") + "bar").replace('`','"')));
+        assertNotNull(registry.getSampleValue("bar", new String[]{}, new String[]{}));
+        assertTrue(jc.isBackgroundScraping());
+
+        jc.configChanged(Config.from((config.replace("3600", "0") + "baz").replace('`','"')));
+        assertFalse(jc.isBackgroundScraping());
+        assertNotNull(registry.getSampleValue("baz", new String[]{}, new String[]{}));
+        assertNull(registry.getSampleValue("jmx_scrape_snapshot_age_seconds", new String[]{}, new String[]{}));
+      } finally {
+        jc.close();
+      }
+    }
+
+    @Test
+    public void testClosedCollectorScrapesInForeground() throws Exception {
+      JmxCollector jc = new JmxCollector("---\nbackgroundScrapeIntervalSeconds: 60").register(registry);
+      assertNotNull(registry.getSampleValue("jmx_scrape_snapshot_age_seconds", new String[]{}, new String[]{}));
+      assertTrue(jc.isBackgroundScraping());
+      jc.close();
+      assertFalse(jc.isBackgroundScraping());
+      assertNull(registry.getSampleValue("jmx_scrape_snapshot_age_seconds", new String[]{}, new String[]{}));
+      assertEquals(200, registry.getSampleValue("hadoop_DataNode_replaceBlockOpMinTime", new String[]{"name"}, new String[]{"DataNodeActivity-ams-hdd001-50010"}), .001);
+      assertFalse(jc.isBackgroundScraping());
+    }
+
+    @Test(timeout = 30000)
+    public void testCollectAndTextFormatShareScrape() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      Slow.registerBean(mbs);
+      try {
+        final JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- slow:*");
+        Thread collect = new Thread(new Runnable() {
+          public void run() {
+            jc.collect();
+          }
+        });
+        collect.start();
+        Slow.started.await();
+        final StringWriter writer = new StringWriter();
+        Thread write = new Thread(new Runnable() {
+          public void run() {
+            try {
+              jc.writeTextFormat(writer);
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+        write.start();
+        // Waiting for the scrape collect() started, rather than on a scrape of its own.
+        while (write.getState() != Thread.State.WAITING) {
+          Thread.yield();
+        }
+        Slow.release.countDown();
+        collect.join();
+        write.join();
+        assertTrue(writer.toString().contains("\nslow_Bean_Value 1.0\n"));
+        assertEquals(1, Slow.reads.get());
+      } finally {
+        Slow.unregisterBean(mbs);
+      }
+    }
+
     @Test
     public void testWhitelist() throws Exception {
       JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- java.lang:*\n- java.lang:*\n- org.apache.cassandra.concurrent:*".replace('`','"')).register(registry);
@@ -176,6 +282,425 @@ public class JmxCollectorTest {
       assertNull(registry.getSampleValue("hadoop_DataNode_replaceBlockOpMinTime", new String[]{"name"}, new String[]{"DataNodeActivity-ams-hdd001-50010"}));
     }
 
+    @Test
+    public void testAttributesReadInBulk() throws Exception {
+      JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- partially:type=Readable").register(registry);
+      // Make sure the bean names and MBeanInfo are cached.
+      jc.collect();
+
+      assertEquals(5, registry.getSampleValue("partially_Readable_Working", new String[]{}, new String[]{}), .001);
+      assertNull(registry.getSampleValue("partially_Readable_Broken", new String[]{}, new String[]{}));
+      // getAttributes and a getAttribute retry for the broken attribute.
+      assertEquals(2, registry.getSampleValue("jmx_scrape_round_trips", new String[]{}, new String[]{}), .001);
+    }
+
+    @Test
+    public void testObjectNamesFollowRegistrations() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("registered:type=Later");
+      JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- registered:*").register(registry);
+      assertNull(registry.getSampleValue("registered_Later_True", new String[]{}, new String[]{}));
+
+      mbs.registerMBean(new Bool(), name);
+      try {
+        assertEquals(1.0, registry.getSampleValue("registered_Later_True", new String[]{}, new String[]{}), .001);
+        assertEquals(1, registry.getSampleValue("jmx_scrape_round_trips", new String[]{}, new String[]{}), .001);
+      } finally {
+        mbs.unregisterMBean(name);
+      }
+      assertNull(registry.getSampleValue("registered_Later_True", new String[]{}, new String[]{}));
+    }
+
+    @Test
+    public void testMBeanInfoCacheInvalidatedOnRegistration() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("replaced:type=Bean");
+      mbs.registerMBean(new Hadoop(), name);
+      try {
+        JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- replaced:*").register(registry);
+        assertEquals(200, registry.getSampleValue("replaced_Bean_replaceBlockOpMinTime", new String[]{}, new String[]{}), .001);
+
+        mbs.unregisterMBean(name);
+        mbs.registerMBean(new Bool(), name);
+        assertNull(registry.getSampleValue("replaced_Bean_replaceBlockOpMinTime", new String[]{}, new String[]{}));
+        assertEquals(1.0, registry.getSampleValue("replaced_Bean_True", new String[]{}, new String[]{}), .001);
+      } finally {
+        mbs.unregisterMBean(name);
+      }
+    }
+
+    @Test
+    public void testCachedRuleResultIsReused() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nrules:\n- pattern: `^hadoop<(service)=(DataNode), name=DataNodeActivity-ams-hdd001-50010><>(replaceBlockOpMinTime):`\n  name: hadoop_$3\n  labels:\n    `$1`: `$2`".replace('`','"')).register(registry);
+      for (int i = 0; i < 3; i++) {
+        assertEquals(200, registry.getSampleValue("hadoop_replaceBlockOpMinTime", new String[]{"service"}, new String[]{"DataNode"}), .001);
+      }
+    }
+
+    @Test
+    public void testRuleMatchingValueIsNotCached() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- mutable:*\nrules:\n- pattern: `^mutable<type=Value><>Value: ([0-9]+)`\n  name: foo_$1\n  value: 1".replace('`','"')).register(registry);
+      mutableValue.setValue(1);
+      try {
+        assertEquals(1.0, registry.getSampleValue("foo_1", new String[]{}, new String[]{}), .001);
+        mutableValue.setValue(2);
+        assertNull(registry.getSampleValue("foo_1", new String[]{}, new String[]{}));
+        assertEquals(1.0, registry.getSampleValue("foo_2", new String[]{}, new String[]{}), .001);
+      } finally {
+        mutableValue.setValue(1);
+      }
+    }
+
+    @Test
+    public void testRuleMatchingValueWithoutColonIsNotCached() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- mutable:*\nrules:\n- pattern: `^mutable<type=Value><>Value.*1`\n  name: foo".replace('`','"')).register(registry);
+      mutableValue.setValue(1);
+      try {
+        assertEquals(1.0, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
+        mutableValue.setValue(2);
+        assertNull(registry.getSampleValue("foo", new String[]{}, new String[]{}));
+      } finally {
+        mutableValue.setValue(1);
+      }
+    }
+
+    @Test
+    public void testCacheDefaults() throws Exception {
+      Config config = Config.from("\n---\nrules:\n- pattern: `^hadoop<(?:service)=(DataNode)>`\n  name: foo\n- pattern: `^hadoop<(?:service)=(DataNode)>(?:.*): 1`\n  name: bar\n- pattern: `^hadoop(?=.*: 1)`\n  name: baz\n- pattern: `^hadoop: 1`\n  name: qux\n  cache: true".replace('`','"'));
+      // Failed matches, decided by the colons.
+      assertTrue(config.rules.get(0).cache);
+      assertFalse(config.rules.get(1).cache);
+      // Matches, decided by where the pattern ended unless there's a lookahead or a cache setting.
+      assertTrue(config.rules.get(0).cacheIfMatchEndsBeforeValue);
+      assertFalse(config.rules.get(2).cache);
+      assertFalse(config.rules.get(2).cacheIfMatchEndsBeforeValue);
+      assertTrue(config.rules.get(3).cache);
+      assertFalse(config.rules.get(3).cacheIfMatchEndsBeforeValue);
+    }
+
+    @Test
+    public void testRuleCacheCanBeForced() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- mutable:*\nrules:\n- pattern: `^mutable<type=Value><>Value: 1`\n  name: foo\n  cache: true".replace('`','"')).register(registry);
+      mutableValue.setValue(1);
+      try {
+        assertEquals(1.0, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
+        mutableValue.setValue(2);
+        // The match from the first scrape sticks, as documented for cache.
+        assertEquals(2.0, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
+      } finally {
+        mutableValue.setValue(1);
+      }
+    }
+
+    @Test(timeout = 30000)
+    public void testSlowBeanTimesOutAndIsQuarantined() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      Slow.registerBean(mbs);
+      try {
+        JmxCollector jc = new JmxCollector(
+                "\n---\nwhitelistObjectNames:\n- slow:*\n- mutable:*\nbeanTimeoutSeconds: 1\nbeanQuarantineScrapes: 2").register(registry);
+        ObjectName slow = new ObjectName(Slow.NAME);
+        BeanQuarantine quarantine = localBeanQuarantine();
+        assertEquals(1.0, registry.getSampleValue("mutable_Value_Value", new String[]{}, new String[]{}), .001);
+        assertTrue(quarantine.isQuarantined(slow));
+
+        // Skipped for two scrapes rather than waited for.
+        assertEquals(1.0, registry.getSampleValue("jmx_scrape_timeouts_total", new String[]{"bean"}, new String[]{Slow.NAME}), .001);
+        assertNull(registry.getSampleValue("slow_Bean_Value", new String[]{}, new String[]{}));
+        assertEquals(1, Slow.reads.get());
+        assertFalse(quarantine.isQuarantined(slow));
+
+        // Interrupted, so the first read ends, and the bean is read again once it answers.
+        awaitDoneReading(quarantine, slow);
+        Slow.release.countDown();
+        assertEquals(1.0, registry.getSampleValue("slow_Bean_Value", new String[]{}, new String[]{}), .001);
+        assertEquals(2, Slow.reads.get());
+        assertEquals(1.0, registry.getSampleValue("jmx_scrape_timeouts_total", new String[]{"bean"}, new String[]{Slow.NAME}), .001);
+      } finally {
+        Slow.unregisterBean(mbs);
+      }
+    }
+
+    @Test(timeout = 30000)
+    public void testHungBeanIsNotReadAgainWhileRunning() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      Slow.registerBean(mbs);
+      Slow.ignoreInterrupts = true;
+      try {
+        JmxCollector jc = new JmxCollector(
+                "\n---\nwhitelistObjectNames:\n- slow:*\nbeanTimeoutSeconds: 1").register(registry);
+        ObjectName slow = new ObjectName(Slow.NAME);
+        BeanQuarantine quarantine = localBeanQuarantine();
+        assertNull(registry.getSampleValue("slow_Bean_Value", new String[]{}, new String[]{}));
+        assertTrue(quarantine.isReading(slow));
+        assertFalse(quarantine.isQuarantined(slow));
+
+        // Not quarantined, but the first read hasn't ended yet, so it's neither read nor waited for.
+        assertEquals(1.0, registry.getSampleValue("jmx_scrape_timeouts_total", new String[]{"bean"}, new String[]{Slow.NAME}), .001);
+        assertEquals(1, Slow.reads.get());
+
+        Slow.release.countDown();
+        awaitDoneReading(quarantine, slow);
+        assertEquals(1.0, registry.getSampleValue("slow_Bean_Value", new String[]{}, new String[]{}), .001);
+        assertEquals(2, Slow.reads.get());
+      } finally {
+        Slow.unregisterBean(mbs);
+      }
+    }
+
+    @Test(timeout = 30000)
+    public void testScrapeDeadline() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      Slow.registerBean(mbs);
+      try {
+        JmxCollector jc = new JmxCollector(
+                "\n---\nwhitelistObjectNames:\n- slow:*\nscrapeTimeoutSeconds: 1\nbeanTimeoutSeconds: 5\nbeanQuarantineScrapes: 5").register(registry);
+        ObjectName slow = new ObjectName(Slow.NAME);
+        BeanQuarantine quarantine = localBeanQuarantine();
+        assertNull(registry.getSampleValue("slow_Bean_Value", new String[]{}, new String[]{}));
+        // Interrupted, so the read ends.
+        awaitDoneReading(quarantine, slow);
+
+        // Cut off by the scrape deadline rather than its own timeout, so not counted or quarantined.
+        assertFalse(quarantine.isQuarantined(slow));
+        assertEquals(0.0, registry.getSampleValue("jmx_scrape_error", new String[]{}, new String[]{}), .001);
+        awaitDoneReading(quarantine, slow);
+        assertNull(registry.getSampleValue("jmx_scrape_timeouts_total", new String[]{"bean"}, new String[]{Slow.NAME}));
+        assertFalse(quarantine.isQuarantined(slow));
+        assertEquals(3, Slow.reads.get());
+      } finally {
+        Slow.unregisterBean(mbs);
+      }
+    }
+
+    /**
+     * The quarantine of the local connection, which the collectors in these tests share.
+     */
+    private static BeanQuarantine localBeanQuarantine() throws Exception {
+      JmxConnection connection = JmxConnectionPool.DEFAULT.acquire("", "", "", false);
+      try {
+        return connection.getBeanQuarantine();
+      } finally {
+        JmxConnectionPool.DEFAULT.release(connection);
+      }
+    }
+
+    /**
+     * Wait for the worker thread reading the bean to be done with it.
+     */
+    private static void awaitDoneReading(BeanQuarantine quarantine, ObjectName name) {
+      while (quarantine.isReading(name)) {
+        Thread.yield();
+      }
+    }
+
+    @Test
+    public void testBeanStatsByDomain() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- partially:*\n- mutable:*\nbeanStats: domain").register(registry);
+      // Each lookup scrapes again, and the stats add up across scrapes.
+      assertEquals(1.0, registry.getSampleValue("jmx_scrape_bean_duration_seconds_count", new String[]{"domain"}, new String[]{"partially"}), .001);
+      assertEquals(2.0, registry.getSampleValue("jmx_scrape_bean_attributes_total", new String[]{"domain"}, new String[]{"partially"}), .001);
+      assertEquals(3.0, registry.getSampleValue("jmx_scrape_bean_attribute_failures_total", new String[]{"domain"}, new String[]{"partially"}), .001);
+      assertEquals(0.0, registry.getSampleValue("jmx_scrape_bean_attribute_failures_total", new String[]{"domain"}, new String[]{"mutable"}), .001);
+    }
+
+    @Test
+    public void testBeanStatsSeriesAreLimited() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- partially:*\n- mutable:*\nbeanStats: bean\nbeanStatsMaxSeries: 1").register(registry);
+      double first = registry.getSampleValue("jmx_scrape_bean_duration_seconds_count", new String[]{"bean"}, new String[]{"partially:type=Readable"}) == null ? 0 : 1;
+      double second = registry.getSampleValue("jmx_scrape_bean_duration_seconds_count", new String[]{"bean"}, new String[]{"mutable:type=Value"}) == null ? 0 : 1;
+      assertEquals(1.0, first + second, .001);
+      assertNotNull(registry.getSampleValue("jmx_scrape_bean_duration_seconds_count", new String[]{"bean"}, new String[]{BeanScrapeStats.OTHER}));
+    }
+
+    @Test
+    public void testAttributeFilters() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- java.lang:type=Memory\n- java.lang:type=OperatingSystem\nattributeFilters:\n- objectName: java.lang:type=Memory\n  includeAttributes: [HeapMemoryUsage]\n- objectName: java.lang:type=OperatingSystem\n  excludeAttributes: [ProcessCpuTime]").register(registry);
+      assertNotNull(registry.getSampleValue("java_lang_Memory_HeapMemoryUsage_used", new String[]{}, new String[]{}));
+      assertNull(registry.getSampleValue("java_lang_Memory_NonHeapMemoryUsage_used", new String[]{}, new String[]{}));
+      assertNotNull(registry.getSampleValue("java_lang_OperatingSystem_AvailableProcessors", new String[]{}, new String[]{}));
+      assertNull(registry.getSampleValue("java_lang_OperatingSystem_ProcessCpuTime", new String[]{}, new String[]{}));
+    }
+
+    @Test
+    public void testUnusedAttributesAreSkipped() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- hadoop:*\n- mutable:*\nbeanStats: domain\nskipUnusedAttributes: true\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime`\n  name: foo".replace('`','"')).register(registry);
+      for (int i = 0; i < 3; i++) {
+        assertEquals(200, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
+      }
+      // No rule can match mutable:type=Value, so only the first of the scrapes read it.
+      assertEquals(1.0, registry.getSampleValue("jmx_scrape_bean_attributes_total", new String[]{"domain"}, new String[]{"mutable"}), .001);
+      assertEquals(5.0, registry.getSampleValue("jmx_scrape_bean_attributes_total", new String[]{"domain"}, new String[]{"hadoop"}), .001);
+    }
+
+    @Test
+    public void testAttributesMatchedByValueAreNotSkipped() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- mutable:*\nbeanStats: domain\nskipUnusedAttributes: true\nrules:\n- pattern: `^mutable<type=Value><>Value: 2`\n  name: foo".replace('`','"')).register(registry);
+      for (int i = 0; i < 3; i++) {
+        assertNull(registry.getSampleValue("foo", new String[]{}, new String[]{}));
+      }
+      assertEquals(4.0, registry.getSampleValue("jmx_scrape_bean_attributes_total", new String[]{"domain"}, new String[]{"mutable"}), .001);
+    }
+
+    @Test
+    public void testSlowRulesRepeatTheLastValue() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- mutable:*\nbeanStats: domain\nrules:\n- pattern: `^mutable<type=Value><>Value`\n  name: foo\n  refreshEvery: 3".replace('`','"')).register(registry);
+      mutableValue.setValue(1);
+      assertEquals(1.0, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
+      mutableValue.setValue(7);
+      // One of the next three scrapes reads the new value, the others repeat the last one.
+      Double value = null;
+      for (int i = 0; i < 3; i++) {
+        value = registry.getSampleValue("foo", new String[]{}, new String[]{});
+        assertNotNull(value);
+      }
+      assertEquals(7.0, value, .001);
+      mutableValue.setValue(1);
+      // Read by the first scrape, one of the next three, and maybe this one.
+      assertTrue(registry.getSampleValue("jmx_scrape_bean_attributes_total", new String[]{"domain"}, new String[]{"mutable"}) <= 3);
+    }
+
+    @Test
+    public void testRefreshEveryKeepsCachedRuleResults() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- mutable:*\nruleStats: true\nrules:\n- pattern: `^mutable<type=Value><>Value`\n  name: foo\n  refreshEvery: 3".replace('`','"')).register(registry);
+      for (int i = 0; i < 7; i++) {
+        assertNotNull(registry.getSampleValue("foo", new String[]{}, new String[]{}));
+      }
+      // Read on every third scrape, and only the first read tried the rule.
+      assertEquals(1.0, registry.getSampleValue("jmx_scrape_rule_evaluations_total", new String[]{"rule", "pattern"},
+          new String[]{"0", "^mutable<type=Value><>Value"}), .001);
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void testRefreshEveryMustBePositive() throws Exception {
+      new JmxCollector("---\nrules:\n- pattern: foo\n  refreshEvery: 0");
+    }
+
+    @Test
+    public void testBeanStatsFollowReload() throws Exception {
+      JmxCollector jc = new JmxCollector("---\nwhitelistObjectNames:\n- mutable:*\nbeanStats: domain").register(registry);
+      assertEquals(1.0, registry.getSampleValue("jmx_scrape_bean_attributes_total", new String[]{"domain"}, new String[]{"mutable"}), .001);
+
+      jc.configChanged(Config.from("---\nwhitelistObjectNames:\n- mutable:*\nbeanStats: bean"));
+      assertNotNull(registry.getSampleValue("jmx_scrape_bean_attributes_total", new String[]{"bean"}, new String[]{"mutable:type=Value"}));
+      assertNull(registry.getSampleValue("jmx_scrape_bean_attributes_total", new String[]{"domain"}, new String[]{"mutable"}));
+
+      jc.configChanged(Config.from("---\nwhitelistObjectNames:\n- mutable:*"));
+      assertNull(registry.getSampleValue("jmx_scrape_bean_attributes_total", new String[]{"bean"}, new String[]{"mutable:type=Value"}));
+      for (Collector.MetricFamilySamples mfs : jc.describe()) {
+        assertFalse(mfs.name.startsWith("jmx_scrape_bean_"));
+      }
+    }
+
+    @Test
+    public void testRuleStats() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- hadoop:*\n- mutable:*\n- java.lang:type=Runtime\nruleStats: true\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime`\n  name: foo\n- pattern: `^mutable<type=Value><>Value`\n  name: bar\n  value: abc\n- pattern: `^java.lang<type=Runtime><>VmName`\n  name: vm".replace('`','"')).register(registry);
+      String[] labels = new String[]{"rule", "pattern"};
+      String[] first = new String[]{"0", "^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime"};
+      assertEquals(1.0, registry.getSampleValue("jmx_scrape_rule_matches_total", labels, first), .001);
+      // Only the first scrape evaluates the rules, later ones use the cached result.
+      double evaluations = registry.getSampleValue("jmx_scrape_rule_evaluations_total", labels, first);
+      assertTrue(evaluations > 1);
+      assertEquals(evaluations, registry.getSampleValue("jmx_scrape_rule_evaluations_total", labels, first), .001);
+      assertNotNull(registry.getSampleValue("jmx_scrape_rule_match_seconds_total", labels, first));
+      // The cached result was used by the four scrapes after the first.
+      assertEquals(4.0, registry.getSampleValue("jmx_scrape_rule_cache_hits_total", labels, first), .001);
+
+      // Dropped samples count on every scrape, the sixth and seventh here, whether the result was cached or not.
+      String[] reasonLabels = new String[]{"rule", "pattern", "reason"};
+      assertEquals(6.0, registry.getSampleValue("jmx_scrape_rule_dropped_samples_total", reasonLabels,
+          new String[]{"1", "^mutable<type=Value><>Value", "value_not_a_number"}), .001);
+      assertEquals(7.0, registry.getSampleValue("jmx_scrape_rule_dropped_samples_total", reasonLabels,
+          new String[]{"2", "^java.lang<type=Runtime><>VmName", "unsupported_type"}), .001);
+    }
+
+    @Test
+    public void testDuplicateSamples() throws Exception {
+      String rules = "\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime`\n  name: foo\n- pattern: `^mutable<type=Value><>Value`\n  name: foo";
+      mutableValue.setValue(1);
+      JmxCollector jc = new JmxCollector(
+              ("\n---\nwhitelistObjectNames:\n- hadoop:*\n- mutable:*" + rules).replace('`','"')).register(registry);
+      int samples = 0;
+      for (Collector.MetricFamilySamples mfs : jc.collect()) {
+        if (mfs.name.equals("foo")) {
+          samples = mfs.samples.size();
+        }
+      }
+      assertEquals(1, samples);
+      assertEquals(1.0, registry.getSampleValue("jmx_scrape_duplicate_samples", new String[]{}, new String[]{}), .001);
+
+      registry = new CollectorRegistry();
+      new JmxCollector(
+              ("\n---\nwhitelistObjectNames:\n- hadoop:*\n- mutable:*\nduplicateSamples: sum" + rules).replace('`','"')).register(registry);
+      assertEquals(201.0, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
+
+      registry = new CollectorRegistry();
+      new JmxCollector(
+              ("\n---\nwhitelistObjectNames:\n- hadoop:*\n- mutable:*\nduplicateSamples: drop" + rules).replace('`','"')).register(registry);
+      assertNull(registry.getSampleValue("foo", new String[]{}, new String[]{}));
+    }
+
+    @Test
+    public void testSummaryFromTimerAttributes() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- kafka.network:*\nrules:\n- pattern: '^kafka.network<type=RequestMetrics, name=(\\w+)Ms, request=(\\w+)><>(Count|Mean|\\d+thPercentile)'\n  name: kafka_network_request_$1_seconds\n  type: SUMMARY\n  valueFactor: 0.001\n  labels:\n    request: `$2`".replace('`','"')).register(registry);
+      String[] labels = new String[]{"request", "quantile"};
+      assertEquals(0.004, registry.getSampleValue("kafka_network_request_TotalTime_seconds", labels, new String[]{"Produce", "0.5"}), .000001);
+      assertEquals(0.03, registry.getSampleValue("kafka_network_request_TotalTime_seconds", labels, new String[]{"Produce", "0.99"}), .000001);
+      assertEquals(0.04, registry.getSampleValue("kafka_network_request_TotalTime_seconds", labels, new String[]{"Produce", "0.999"}), .000001);
+      // The count isn't scaled, and the sum is the mean times the count.
+      assertEquals(10, registry.getSampleValue("kafka_network_request_TotalTime_seconds_count", new String[]{"request"}, new String[]{"Produce"}), .000001);
+      assertEquals(0.05, registry.getSampleValue("kafka_network_request_TotalTime_seconds_sum", new String[]{"request"}, new String[]{"Produce"}), .000001);
+
+      for (Collector.MetricFamilySamples mfs : jc.collect()) {
+        if (mfs.name.startsWith("kafka_network")) {
+          assertEquals("kafka_network_request_TotalTime_seconds", mfs.name);
+          assertEquals(Collector.Type.SUMMARY, mfs.type);
+          assertEquals(5, mfs.samples.size());
+        }
+      }
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void testSummaryRulesMustHaveName() throws Exception {
+      new JmxCollector("---\nrules:\n- pattern: foo\n  type: SUMMARY");
+    }
+
+    @Test
+    public void testArraysAreNotExportedByDefault() throws Exception {
+      JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- arrays:*").register(registry);
+      assertNull(registry.getSampleValue("arrays_Arrays_ThreadCpuTimes", new String[]{"index"}, new String[]{"0"}));
+    }
+
+    @Test
+    public void testArrayElementsAreExported() throws Exception {
+      JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- arrays:*\narrayMaxElements: 2").register(registry);
+      assertEquals(100, registry.getSampleValue("arrays_Arrays_ThreadCpuTimes", new String[]{"index"}, new String[]{"0"}), .001);
+      assertEquals(200, registry.getSampleValue("arrays_Arrays_ThreadCpuTimes", new String[]{"index"}, new String[]{"1"}), .001);
+      // Past arrayMaxElements.
+      assertNull(registry.getSampleValue("arrays_Arrays_ThreadCpuTimes", new String[]{"index"}, new String[]{"2"}));
+      assertEquals(1.5, registry.getSampleValue("arrays_Arrays_Loads", new String[]{"index"}, new String[]{"1"}), .001);
+    }
+
+    @Test
+    public void testArrayIndexLabel() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- arrays:*\narrayMaxElements: 10\narrayIndexLabel: thread\nrules:\n- pattern: '^arrays<type=Arrays, thread=(\\d+)><>ThreadCpuTimes'\n  name: thread_cpu_time\n  labels:\n    thread: `$1`".replace('`','"')).register(registry);
+      assertEquals(300, registry.getSampleValue("thread_cpu_time", new String[]{"thread"}, new String[]{"2"}), .001);
+    }
+
     @Test
     public void testDefaultExportLowercaseOutputName() throws Exception {
       JmxCollector jc = new JmxCollector("---\nlowercaseOutputName: true").register(registry);
@@ -0,0 +1,211 @@
+package io.prometheus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JmxConnectionPoolTest {
+
+    JMXConnectorServer server;
+    String jmxUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        server = JMXConnectorServerFactory.newJMXConnectorServer(
+                new JMXServiceURL("service:jmx:rmi://"), null, ManagementFactory.getPlatformMBeanServer());
+        server.start();
+        jmxUrl = server.getAddress().toString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        JmxConnectionPool pool = new JmxConnectionPool(TimeUnit.MINUTES.toNanos(1), TimeUnit.MINUTES.toNanos(10));
+        JmxConnection first = pool.acquire(jmxUrl, "", "", false);
+        pool.release(first);
+        JmxConnection second = pool.acquire(jmxUrl, "", "", false);
+        pool.release(second);
+        assertSame(first, second);
+        assertTrue(second.getMBeanServerConnection().getMBeanCount() > 0);
+    }
+
+    @Test
+    public void testBrokenConnectionIsReplaced() throws Exception {
+        JmxConnectionPool pool = new JmxConnectionPool(TimeUnit.MINUTES.toNanos(1), TimeUnit.MINUTES.toNanos(10));
+        double reconnects = JmxConnectionPool.reconnects.get();
+        JmxConnection first = pool.acquire(jmxUrl, "", "", false);
+        pool.invalidate(first);
+        JmxConnection second = pool.acquire(jmxUrl, "", "", false);
+        assertNotSame(first, second);
+        assertFalse(second.isBroken());
+        assertEquals(reconnects + 1, JmxConnectionPool.reconnects.get(), .001);
+    }
+
+    @Test
+    public void testIdleConnectionIsEvicted() throws Exception {
+        JmxConnectionPool pool = new JmxConnectionPool(TimeUnit.MINUTES.toNanos(1), 0);
+        JmxConnection remote = pool.acquire(jmxUrl, "", "", false);
+        pool.release(remote);
+        Thread.sleep(1);
+        pool.acquire("", "", "", false);
+        assertTrue(remote.isBroken());
+        // Only the local target is left.
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testBrokenLocalConnectionIsNotCounted() throws Exception {
+        JmxConnectionPool pool = new JmxConnectionPool(TimeUnit.MINUTES.toNanos(1), TimeUnit.MINUTES.toNanos(10));
+        double open = JmxConnectionPool.openConnections.get();
+        JmxConnection local = pool.acquire("", "", "", false);
+        pool.invalidate(local);
+        assertNotSame(local, pool.acquire("", "", "", false));
+        assertEquals(open, JmxConnectionPool.openConnections.get(), .001);
+    }
+
+    @Test
+    public void testHungConnectDoesntBlockOtherTargets() throws Exception {
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final JmxConnectionPool pool = new JmxConnectionPool(0, 0) {
+            JmxConnection connect(String jmxUrl, String username, String password, boolean ssl) throws IOException {
+                if (jmxUrl.equals("hung")) {
+                    connecting.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+                }
+                return super.connect(jmxUrl, username, password, ssl);
+            }
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<JmxConnection> hung = executor.submit(new Callable<JmxConnection>() {
+                public JmxConnection call() throws Exception {
+                    return pool.acquire("hung", "", "", false);
+                }
+            });
+            connecting.await();
+            Future<JmxConnection> other = executor.submit(new Callable<JmxConnection>() {
+                public JmxConnection call() throws Exception {
+                    return pool.acquire(jmxUrl, "", "", false);
+                }
+            });
+            // Returns while the other target is still connecting.
+            assertTrue(other.get(30, TimeUnit.SECONDS).getMBeanServerConnection().getMBeanCount() > 0);
+            assertFalse(hung.isDone());
+            release.countDown();
+            try {
+                hung.get(30, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                // "hung" isn't a valid url, all that matters is that it was waited for.
+            }
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLocalConnectionIsNeverEvicted() throws Exception {
+        JmxConnectionPool pool = new JmxConnectionPool(0, 0);
+        JmxConnection local = pool.acquire("", "", "", false);
+        Thread.sleep(1);
+        assertSame(local, pool.acquire("", "", "", false));
+    }
+
+    @Test
+    public void testClosedLocalConnectionStopsListening() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        final AtomicInteger registrations = new AtomicInteger();
+        JmxConnection local = JmxConnection.local();
+        assertTrue(local.addRegistrationListener(new JmxConnection.RegistrationListener() {
+            public void registered(ObjectName name) {
+                registrations.incrementAndGet();
+            }
+            public void unregistered(ObjectName name) {
+            }
+            public void registrationsLost() {
+            }
+        }));
+        local.close();
+        ObjectName name = new ObjectName("closed:type=Bool");
+        mbs.registerMBean(new Bool(), name);
+        mbs.unregisterMBean(name);
+        assertEquals(0, registrations.get());
+        assertFalse(local.receivesRegistrations());
+    }
+
+    @Test
+    public void testUnusedNameIndexIsDropped() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        JmxConnection local = JmxConnection.local();
+        List<ObjectName> none = Collections.emptyList();
+        MBeanNameIndex old = local.getNameIndex(Collections.singletonList(new ObjectName("dropped:*")), none, 0);
+        old.beginResync();
+        old.completeResync(new HashSet<ObjectName>());
+        Thread.sleep(1);
+        local.getNameIndex(none, none, 0);
+        assertEquals(1, local.nameIndexCount());
+
+        ObjectName name = new ObjectName("dropped:type=Bool");
+        mbs.registerMBean(new Bool(), name);
+        try {
+            // No longer told about registrations.
+            assertTrue(old.names().isEmpty());
+        } finally {
+            mbs.unregisterMBean(name);
+            local.close();
+        }
+    }
+
+    @Test
+    public void testLostNotificationsDuringScrapeDontLoseNames() throws Exception {
+        JmxConnection local = JmxConnection.local();
+        try {
+            List<ObjectName> none = Collections.emptyList();
+            MBeanNameIndex index = local.getNameIndex(none, none, TimeUnit.MINUTES.toNanos(1));
+            ObjectName name = new ObjectName("lost:type=Bool");
+            index.beginResync();
+            List<ObjectName> names = index.completeResync(Collections.singleton(name));
+            assertEquals(Collections.singletonList(name), index.currentNames(TimeUnit.MINUTES.toNanos(1)));
+            // Notifications lost after the resync, while the scrape goes on with its copy.
+            index.registrationsLost();
+            assertEquals(Collections.singletonList(name), names);
+            assertEquals(null, index.currentNames(TimeUnit.MINUTES.toNanos(1)));
+            assertTrue(index.names().isEmpty());
+        } finally {
+            local.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface KafkaTimerMBean {
+    // The attributes of a yammer/dropwizard Timer, as exported by its JmxReporter.
+    public long getCount();
+    public double getMin();
+    public double getMax();
+    public double getMean();
+    public double getStdDev();
+    public double get50thPercentile();
+    public double get99thPercentile();
+    public double get999thPercentile();
+    public double getMeanRate();
+    public String getRateUnit();
+}
+
+class KafkaTimer implements KafkaTimerMBean {
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName(
+                "kafka.network:type=RequestMetrics,name=TotalTimeMs,request=Produce");
+        KafkaTimerMBean mbean = new KafkaTimer();
+        mbs.registerMBean(mbean, mbeanName);
+    }
+
+    public long getCount() {
+        return 10;
+    }
+
+    public double getMin() {
+        return 1;
+    }
+
+    public double getMax() {
+        return 40;
+    }
+
+    public double getMean() {
+        return 5;
+    }
+
+    public double getStdDev() {
+        return 2;
+    }
+
+    public double get50thPercentile() {
+        return 4;
+    }
+
+    public double get99thPercentile() {
+        return 30;
+    }
+
+    public double get999thPercentile() {
+        return 40;
+    }
+
+    public double getMeanRate() {
+        return 0.5;
+    }
+
+    public String getRateUnit() {
+        return "SECONDS";
+    }
+}
@@ -0,0 +1,48 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class KeyPropertyListTest {
+
+    @Test
+    public void testSameStringAsMap() throws Throwable {
+        ObjectName name = new ObjectName("com.organisation:type=a,name=\"b,c\",x=");
+        KeyPropertyList properties = KeyPropertyList.parse(name.getKeyPropertyListString());
+        LinkedHashMap<String, String> map = JmxScraper.getKeyPropertyList(name);
+        assertEquals(map, properties.toMap());
+        assertEquals(map.toString(), properties.toString());
+        assertEquals(3, properties.size());
+        assertEquals("name", properties.getKey(1));
+        assertEquals("\"b,c\"", properties.get("name"));
+        assertNull(properties.get("other"));
+        assertEquals("{}", KeyPropertyList.EMPTY.toString());
+    }
+
+    @Test
+    public void testWith() throws Throwable {
+        KeyPropertyList properties = KeyPropertyList.parse("type=a,name=b");
+        assertEquals("{type=a, name=c}", properties.with("name", "c").toString());
+        assertEquals("{type=a, name=b, key=c}", properties.with("key", "c").toString());
+        // The original is unchanged.
+        assertEquals("{type=a, name=b}", properties.toString());
+    }
+
+    @Test
+    public void testAttributePath() throws Throwable {
+        AttributePath path = AttributePath.EMPTY.append("a");
+        AttributePath longer = path.append("b");
+        assertEquals(new LinkedList<String>().toString(), AttributePath.EMPTY.toString());
+        assertEquals(new LinkedList<String>(Arrays.asList("a", "b")).toString(), longer.toString());
+        assertEquals(Arrays.asList("a", "b"), longer.toList());
+        assertEquals(1, path.size());
+        assertEquals("b", longer.get(1));
+    }
+}
@@ -0,0 +1,63 @@
+package io.prometheus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import org.junit.Test;
+
+public class MBeanInfoCacheTest {
+
+    private static final MBeanInfo INFO = new MBeanInfo("Bean", "", new MBeanAttributeInfo[0],
+            new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+
+    @Test
+    public void testFetchedInfoIsKept() throws Exception {
+        MBeanInfoCache cache = new MBeanInfoCache();
+        ObjectName name = new ObjectName("cache:type=Bean");
+        MBeanInfoCache.Entry loading = cache.startLoading(name);
+        assertNull(cache.getIfPresent(name, -1));
+        cache.put(name, loading, INFO);
+        assertSame(INFO, cache.getIfPresent(name, -1));
+    }
+
+    @Test
+    public void testUnregisteredWhileFetchingIsNotKept() throws Exception {
+        MBeanInfoCache cache = new MBeanInfoCache();
+        ObjectName name = new ObjectName("cache:type=Bean");
+        MBeanInfoCache.Entry loading = cache.startLoading(name);
+        cache.unregistered(name);
+        cache.put(name, loading, INFO);
+        assertNull(cache.getIfPresent(name, -1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testAbandonedFetchIsForgotten() throws Exception {
+        MBeanInfoCache cache = new MBeanInfoCache();
+        ObjectName name = new ObjectName("cache:type=Bean");
+        cache.abandon(name, cache.startLoading(name));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpiredEntriesAreSwept() throws Exception {
+        MBeanInfoCache cache = new MBeanInfoCache();
+        for (int i = 0; i < 3; i++) {
+            ObjectName name = new ObjectName("cache:type=Bean,id=" + i);
+            cache.put(name, cache.startLoading(name), INFO);
+        }
+        // Not due yet.
+        cache.sweepIfDue(Long.MAX_VALUE);
+        assertEquals(3, cache.size());
+        Thread.sleep(1);
+        cache.sweepIfDue(1);
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,50 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MergeQueriesTest {
+
+    @Test
+    public void testAllBeans() throws Throwable {
+        List<ObjectName> all = Collections.singletonList(null);
+        assertEquals(all, JmxScraper.mergeQueries(new ArrayList<ObjectName>()));
+        assertEquals(all, JmxScraper.mergeQueries(Arrays.asList(new ObjectName("java.lang:*"), null)));
+        assertEquals(Arrays.asList(new ObjectName("*:*")),
+                JmxScraper.mergeQueries(names("java.lang:*", "*:*", "kafka.server:type=*,*")));
+    }
+
+    @Test
+    public void testDuplicatesAndCoveredNames() throws Throwable {
+        assertEquals(names("java.lang:*", "kafka.server:type=BrokerTopicMetrics,*"),
+                JmxScraper.mergeQueries(names(
+                        "java.lang:*",
+                        "java.lang:type=Memory",
+                        "kafka.server:type=BrokerTopicMetrics,*",
+                        "java.lang:type=GarbageCollector,*",
+                        "java.lang:*",
+                        "kafka.server:type=BrokerTopicMetrics,name=BytesInPerSec")));
+    }
+
+    @Test
+    public void testOverlappingPatternsAreKept() throws Throwable {
+        // Neither covers the other, so both are queried.
+        assertEquals(names("kafka.server:type=*,*", "kafka.server:name=*,*"),
+                JmxScraper.mergeQueries(names("kafka.server:type=*,*", "kafka.server:name=*,*")));
+    }
+
+    private static List<ObjectName> names(String... names) throws Exception {
+        List<ObjectName> result = new ArrayList<ObjectName>();
+        for (String name : names) {
+            result.add(new ObjectName(name));
+        }
+        return result;
+    }
+}
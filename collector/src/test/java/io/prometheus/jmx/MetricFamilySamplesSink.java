@@ -0,0 +1,31 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects samples as MetricFamilySamples, to compare other sinks against.
+ * Not thread-safe, which is fine for receivers, as they're only called from
+ * the scraping thread.
+ */
+class MetricFamilySamplesSink implements SampleSink {
+  final Map<String, MetricFamilySamples> metricFamilySamplesMap = new HashMap<String, MetricFamilySamples>();
+
+  public void add(String familyName, Type type, String help, String sampleName, List<String> labelNames, List<String> labelValues, double value) {
+    MetricFamilySamples mfs = metricFamilySamplesMap.get(familyName);
+    if (mfs == null) {
+      mfs = new MetricFamilySamples(familyName, type, help, new ArrayList<MetricFamilySamples.Sample>());
+      metricFamilySamplesMap.put(familyName, mfs);
+    }
+    mfs.samples.add(new MetricFamilySamples.Sample(sampleName, labelNames, labelValues, value));
+  }
+
+  List<MetricFamilySamples> toList() {
+    return new ArrayList<MetricFamilySamples>(metricFamilySamplesMap.values());
+  }
+}
@@ -0,0 +1,29 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface MutableValueMBean {
+    public int getValue();
+    public void setValue(int value);
+}
+
+class MutableValue implements MutableValueMBean {
+    private int value = 1;
+
+    public static MutableValue registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName("mutable:type=Value");
+        MutableValue mbean = new MutableValue();
+        mbs.registerMBean(mbean, mbeanName);
+        return mbean;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public void setValue(int value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,50 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class NameCacheTest {
+
+    private static final String[] NAMES = {
+        "", "_", "__", "a", "abc_def:ghi", "a__b", "a-b", "a--b", "a-_-b", "_a_", "-a-", "a.b.c",
+        "java.lang<type=Memory><HeapMemoryUsage>used", "été", "a😀b", "9lives",
+    };
+
+    @Test
+    public void testSafeNameMatchesRegexes() {
+        Pattern unsafeChars = Pattern.compile("[^a-zA-Z0-9:_]");
+        Pattern multipleUnderscores = Pattern.compile("__+");
+        for (String name : NAMES) {
+            String expected = multipleUnderscores.matcher(unsafeChars.matcher(name).replaceAll("_")).replaceAll("_");
+            assertEquals(name, expected, NameCache.safeName(name));
+        }
+    }
+
+    @Test
+    public void testSafeNameReturnsSafeInput() {
+        String name = "already_safe:name";
+        assertSame(name, NameCache.safeName(name));
+    }
+
+    @Test
+    public void testSnakeCaseMatchesRegex() {
+        Pattern snakeCasePattern = Pattern.compile("([a-z0-9])([A-Z])");
+        NameCache cache = new NameCache(100);
+        for (String name : new String[]{"anAttrName", "HeapMemoryUsage", "a1B", "aBC", "aBcD", "URLCount", "already_snake"}) {
+            assertEquals(snakeCasePattern.matcher(name).replaceAll("$1_$2").toLowerCase(), cache.snakeCase(name));
+        }
+    }
+
+    @Test
+    public void testCachedNamesAreReused() {
+        NameCache cache = new NameCache(100);
+        String first = cache.safeName(new String("A.b"), true);
+        assertEquals("a_b", first);
+        assertSame(first, cache.safeName(new String("A.b"), true));
+        assertEquals("A_b", cache.safeName("A.b", false));
+    }
+}
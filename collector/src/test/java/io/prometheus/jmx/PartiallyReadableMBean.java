@@ -0,0 +1,27 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface PartiallyReadableMBean {
+    public int getWorking();
+    public int getBroken();
+}
+
+class PartiallyReadable implements PartiallyReadableMBean {
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName("partially:type=Readable");
+        PartiallyReadable mbean = new PartiallyReadable();
+        mbs.registerMBean(mbean, mbeanName);
+    }
+
+    public int getWorking() {
+        return 5;
+    }
+
+    public int getBroken() {
+        throw new IllegalStateException("not available");
+    }
+}
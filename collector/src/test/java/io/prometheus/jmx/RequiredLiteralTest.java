@@ -0,0 +1,47 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RequiredLiteralTest {
+
+    @Test
+    public void testLeadingLiteral() {
+        assertEquals("kafka.server<type=", Config.requiredLiteral("kafka\\.server<type=(.+), name=(.+)><>Value"));
+        // . is any character, the longest text around it is kept.
+        assertEquals("server<type=", Config.requiredLiteral("kafka.server<type=(.+), name=(.+)><>Value"));
+        assertEquals("Catalina<type=ThreadPool, name=\"", Config.requiredLiteral("Catalina<type=ThreadPool, name=\"(\\w+-\\w+)-(\\d+)\"><>(\\w+):"));
+        assertEquals("hadoop<", Config.requiredLiteral("^hadoop<(service)=(DataNode)"));
+        assertEquals("java.lang<type=Memory><HeapMemoryUsage>", Config.requiredLiteral("java\\.lang<type=Memory><HeapMemoryUsage>"));
+    }
+
+    @Test
+    public void testQuantifiedCharacterIsLeftOut() {
+        assertEquals("fo", Config.requiredLiteral("foo?bar"));
+        assertEquals("fo", Config.requiredLiteral("foo*bar"));
+        assertEquals("fo", Config.requiredLiteral("foo{2}bar"));
+        assertEquals("foo", Config.requiredLiteral("foo+ba"));
+        assertEquals("a", Config.requiredLiteral("a.?b"));
+        assertEquals("a", Config.requiredLiteral("a\\.?b"));
+        assertNull(Config.requiredLiteral("f?oo"));
+    }
+
+    @Test
+    public void testNoLiteral() {
+        assertNull(Config.requiredLiteral(".*"));
+        assertNull(Config.requiredLiteral("(kafka|zookeeper)"));
+        assertNull(Config.requiredLiteral("\\w+<type"));
+        assertNull(Config.requiredLiteral("kafka<type=a>|zookeeper<type=b>"));
+        assertNull(Config.requiredLiteral("(?i)kafka"));
+        assertNull(Config.requiredLiteral("kafka(?i)<type"));
+    }
+
+    @Test
+    public void testAlternativesInsideGroupsAndClasses() {
+        assertEquals("kafka<type=", Config.requiredLiteral("kafka<type=(a|b)>"));
+        assertEquals("kafka<type=", Config.requiredLiteral("kafka<type=[|]>"));
+        assertEquals("kafka<type=|", Config.requiredLiteral("kafka<type=\\|"));
+    }
+}
@@ -0,0 +1,53 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface SlowMBean {
+    public int getValue();
+}
+
+/**
+ * A bean whose reads block until the test releases them.
+ */
+class Slow implements SlowMBean {
+    static final String NAME = "slow:type=Bean";
+    static final AtomicInteger reads = new AtomicInteger();
+    static volatile CountDownLatch started;
+    static volatile CountDownLatch release;
+    // Like a call stuck in I/O, which interrupting doesn't end.
+    static volatile boolean ignoreInterrupts;
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        reads.set(0);
+        started = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        ignoreInterrupts = false;
+        mbs.registerMBean(new Slow(), new ObjectName(NAME));
+    }
+
+    public static void unregisterBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        release.countDown();
+        mbs.unregisterMBean(new ObjectName(NAME));
+    }
+
+    public int getValue() {
+        reads.incrementAndGet();
+        started.countDown();
+        while (true) {
+            try {
+                release.await();
+                return 1;
+            } catch (InterruptedException e) {
+                if (!ignoreInterrupts) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+        }
+    }
+}
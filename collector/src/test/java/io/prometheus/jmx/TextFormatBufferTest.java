@@ -0,0 +1,66 @@
+package io.prometheus.jmx;
+
+import static org.junit.Assert.assertEquals;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+
+public class TextFormatBufferTest {
+
+    @Test
+    public void testSameOutputAsTextFormat() throws Exception {
+        List<String> noLabels = new ArrayList<String>();
+        SampleSink[] sinks = {new TextFormatBuffer(), new MetricFamilySamplesSink()};
+        for (SampleSink sink : sinks) {
+            sink.add("foo", Type.COUNTER, "Help with \\ and\nnewline", "foo", noLabels, noLabels, 1.5);
+            sink.add("foo", Type.COUNTER, "ignored", "foo", Arrays.asList("a", "b"), Arrays.asList("x\"y", "back\\slash\nnew"), Double.POSITIVE_INFINITY);
+            sink.add("bar", Type.UNTYPED, "", "bar", noLabels, noLabels, -0.0);
+        }
+
+        StringWriter streamed = new StringWriter();
+        ((TextFormatBuffer) sinks[0]).writeTo(streamed);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(((MetricFamilySamplesSink) sinks[1]).toList()));
+        assertEquals(sortedLines(expected.toString()), sortedLines(streamed.toString()));
+
+        StringWriter converted = new StringWriter();
+        TextFormat.write004(converted, Collections.enumeration(((TextFormatBuffer) sinks[0]).toMetricFamilySamples()));
+        assertEquals(sortedLines(expected.toString()), sortedLines(converted.toString()));
+    }
+
+    @Test
+    public void testWritesOnlyNamedFamilies() throws Exception {
+        List<String> noLabels = new ArrayList<String>();
+        TextFormatBuffer buffer = new TextFormatBuffer();
+        buffer.add("foo", Type.GAUGE, "help", "foo", noLabels, noLabels, 1);
+        buffer.add("bar", Type.GAUGE, "help", "bar", noLabels, noLabels, 2);
+
+        StringWriter writer = new StringWriter();
+        buffer.writeTo(writer, new HashSet<String>(Arrays.asList("bar", "baz")));
+        assertEquals("# HELP bar help\n# TYPE bar gauge\nbar 2.0\n", writer.toString());
+    }
+
+    private static List<String> sortedLines(String s) {
+        List<String> lines = new ArrayList<String>(Arrays.asList(s.split("\n")));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    @Test
+    public void testCollectorWritesTextFormat() throws Exception {
+        JmxCollector jc = new JmxCollector("---\nwhitelistObjectNames:\n- java.lang:type=Memory");
+        StringWriter writer = new StringWriter();
+        jc.writeTextFormat(writer);
+        String text = writer.toString();
+        assertEquals(true, text.contains("\njava_lang_Memory_HeapMemoryUsage_used "));
+        assertEquals(true, text.contains("# TYPE jmx_scrape_error gauge\njmx_scrape_error 0.0\n"));
+    }
+}
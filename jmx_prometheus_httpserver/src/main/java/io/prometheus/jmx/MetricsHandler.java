@@ -0,0 +1,99 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Serves the scrape of a collector followed by the metrics of the default registry.
+ *
+ * The scrape is kept as text until it's written, and the response is written
+ * as it's produced rather than assembled in memory first. As with
+ * simpleclient's HTTPServer, name[] query parameters limit the response to
+ * the metric families with those names.
+ */
+class MetricsHandler implements HttpHandler {
+  private static final Logger LOGGER = Logger.getLogger(MetricsHandler.class.getName());
+
+  private final JmxCollector collector;
+
+  MetricsHandler(JmxCollector collector) {
+    this.collector = collector;
+  }
+
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      TextFormatBuffer buffer;
+      try {
+        buffer = collector.collectTextFormat();
+      } catch (RuntimeException e) {
+        LOGGER.warning("Scrape failed: " + e);
+        sendError(exchange, 500, "Scrape failed: " + e);
+        return;
+      }
+      sendTextFormat(exchange, buffer, true, parseNames(exchange.getRequestURI().getRawQuery()));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Send the buffer, if any, and optionally the default registry.
+   *
+   * @param names the metric families to send, or all of them if empty.
+   */
+  static void sendTextFormat(HttpExchange exchange, TextFormatBuffer buffer, boolean withDefaultRegistry, Set<String> names) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+    // The length isn't known up front, so the response is chunked.
+    exchange.sendResponseHeaders(200, 0);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"), 1 << 16);
+    if (buffer != null) {
+      buffer.writeTo(writer, names);
+    }
+    if (withDefaultRegistry) {
+      if (names.isEmpty()) {
+        TextFormat.write004(writer, CollectorRegistry.defaultRegistry.metricFamilySamples());
+      } else {
+        TextFormat.write004(writer, CollectorRegistry.defaultRegistry.filteredMetricFamilySamples(names));
+      }
+    }
+    writer.close();
+  }
+
+  /**
+   * The values of the name[] parameters of a query.
+   */
+  static Set<String> parseNames(String query) throws IOException {
+    Set<String> names = new HashSet<String>();
+    if (query == null) {
+      return names;
+    }
+    for (String pair : query.split("&")) {
+      int idx = pair.indexOf('=');
+      if (idx >= 0 && "name[]".equals(URLDecoder.decode(pair.substring(0, idx), "UTF-8"))) {
+        names.add(URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+      }
+    }
+    return names;
+  }
+
+  static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+    byte[] body = (message + "\n").getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream os = exchange.getResponseBody();
+    os.write(body);
+    os.close();
+  }
+}
@@ -0,0 +1,293 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.client.Counter;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Serves /metrics?target=host:port&module=name, scraping the target with the rules of the module.
+ *
+ * Each module is parsed once and its rules are shared by all targets. Each
+ * (module, target) pair gets its own collector, so caches and errors are kept
+ * per target, while connections come from the shared pool. Scrapes run on a
+ * separate thread, so a slow target only holds up its own requests. Without a
+ * target the exporter's own metrics are served.
+ *
+ * Requests are unauthenticated, so the target can only be a host and port,
+ * which the module's URL template turns into a JMX URL. A full URL would let
+ * anyone make the exporter look up JNDI names on any server, and send it the
+ * module's credentials. The number of targets is capped for the same reason.
+ */
+class MultiTargetHandler implements HttpHandler {
+  private static final Logger LOGGER = Logger.getLogger(MultiTargetHandler.class.getName());
+
+  static final String TIMEOUT_HEADER = "X-Prometheus-Scrape-Timeout-Seconds";
+  static final String DEFAULT_JMX_URL_TEMPLATE = "service:jmx:rmi:///jndi/rmi://{target}/jmxrmi";
+
+  // A host name, IPv4 address or bracketed IPv6 address, and a port.
+  private static final Pattern HOST_PORT = Pattern.compile("(?:[A-Za-z0-9._-]+|\\[[0-9A-Fa-f:.]+\\]):[0-9]{1,5}");
+
+  static final Counter targetScrapeFailures = Counter.build()
+      .name("jmx_target_scrape_failures_total")
+      .labelNames("reason")
+      .help("Number of target scrapes that didn't return metrics, by reason.").register();
+
+  private final Map<String, Module> modules;
+  private final long defaultTimeoutMillis;
+  private final long targetIdleNanos;
+  private final int maxTargets;
+  private final ConcurrentMap<List<String>, Target> targets = new ConcurrentHashMap<List<String>, Target>();
+
+  private final ExecutorService scrapes = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "jmx-target-scrape-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  MultiTargetHandler(Map<String, Module> modules, long defaultTimeoutMillis, long targetIdleNanos, int maxTargets) {
+    this.modules = modules;
+    this.defaultTimeoutMillis = defaultTimeoutMillis;
+    this.targetIdleNanos = targetIdleNanos;
+    this.maxTargets = maxTargets;
+  }
+
+  static boolean isMultiTarget(Map<String, Object> yamlConfig) {
+    return yamlConfig != null && yamlConfig.containsKey("modules");
+  }
+
+  /**
+   * Build the handler from a config with a top level modules map, each module being a regular config without a target.
+   */
+  static MultiTargetHandler from(Map<String, Object> yamlConfig) throws Exception {
+    Map<String, Object> yamlModules = (Map<String, Object>) yamlConfig.get("modules");
+    if (yamlModules == null || yamlModules.isEmpty()) {
+      throw new IllegalArgumentException("At least one module must be provided");
+    }
+    Map<String, Module> modules = new LinkedHashMap<String, Module>();
+    for (Map.Entry<String, Object> entry : yamlModules.entrySet()) {
+      Map<String, Object> yamlModule = (Map<String, Object>) entry.getValue();
+      if (yamlModule != null && (yamlModule.containsKey("hostPort") || yamlModule.containsKey("jmxUrl"))) {
+        throw new IllegalArgumentException("Module " + entry.getKey() + " must not set hostPort or jmxUrl, the target is given per request");
+      }
+      if (yamlModule != null && yamlModule.containsKey("backgroundScrapeIntervalSeconds")) {
+        throw new IllegalArgumentException("Module " + entry.getKey() + " must not set backgroundScrapeIntervalSeconds");
+      }
+      String jmxUrlTemplate = DEFAULT_JMX_URL_TEMPLATE;
+      if (yamlModule != null && yamlModule.containsKey("jmxUrlTemplate")) {
+        jmxUrlTemplate = (String) yamlModule.get("jmxUrlTemplate");
+        if (!jmxUrlTemplate.contains("{target}")) {
+          throw new IllegalArgumentException("jmxUrlTemplate of module " + entry.getKey() + " must contain {target}");
+        }
+      }
+      Config config = new Config();
+      Config.from(config, yamlModule);
+      modules.put(entry.getKey(), new Module(config, jmxUrlTemplate));
+    }
+
+    if (yamlConfig.containsKey("scrapeTimeoutSeconds")) {
+      // The module setting of the same name bounds reading beans, this is about waiting for a target.
+      throw new IllegalArgumentException("scrapeTimeoutSeconds is a module setting, use targetTimeoutSeconds at the top level");
+    }
+    int timeoutSeconds = 10;
+    if (yamlConfig.containsKey("targetTimeoutSeconds")) {
+      timeoutSeconds = (Integer) yamlConfig.get("targetTimeoutSeconds");
+    }
+    int targetIdleSeconds = 600;
+    if (yamlConfig.containsKey("targetIdleSeconds")) {
+      targetIdleSeconds = (Integer) yamlConfig.get("targetIdleSeconds");
+    }
+    int maxTargets = 1000;
+    if (yamlConfig.containsKey("maxTargets")) {
+      maxTargets = (Integer) yamlConfig.get("maxTargets");
+    }
+    return new MultiTargetHandler(modules, TimeUnit.SECONDS.toMillis(timeoutSeconds), TimeUnit.SECONDS.toNanos(targetIdleSeconds), maxTargets);
+  }
+
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+      Set<String> names = MetricsHandler.parseNames(exchange.getRequestURI().getRawQuery());
+      String targetParam = params.get("target");
+      if (targetParam == null || targetParam.length() == 0) {
+        MetricsHandler.sendTextFormat(exchange, null, true, names);
+        return;
+      }
+
+      String moduleName = params.get("module");
+      if (moduleName == null) {
+        moduleName = modules.size() == 1 ? modules.keySet().iterator().next() : "default";
+      }
+      Module module = modules.get(moduleName);
+      if (module == null) {
+        MetricsHandler.sendError(exchange, 400, "Unknown module " + moduleName);
+        return;
+      }
+      if (!isHostPort(targetParam)) {
+        MetricsHandler.sendError(exchange, 400, "Target must be host:port");
+        return;
+      }
+
+      evictIdleTargets();
+      Target target = getTarget(moduleName, module, targetParam);
+      if (target == null) {
+        targetScrapeFailures.labels("too_many_targets").inc();
+        MetricsHandler.sendError(exchange, 503, "Too many targets, at most " + maxTargets + " are scraped at a time");
+        return;
+      }
+      long timeoutMillis = timeoutMillis(exchange.getRequestHeaders().getFirst(TIMEOUT_HEADER));
+      try {
+        MetricsHandler.sendTextFormat(exchange, target.scrape().get(timeoutMillis, TimeUnit.MILLISECONDS), false, names);
+      } catch (TimeoutException e) {
+        targetScrapeFailures.labels("timeout").inc();
+        MetricsHandler.sendError(exchange, 503, "Scrape of " + targetParam + " timed out after " + timeoutMillis + "ms");
+      } catch (ExecutionException e) {
+        targetScrapeFailures.labels("error").inc();
+        LOGGER.warning("Scrape of " + targetParam + " with module " + moduleName + " failed: " + e.getCause());
+        MetricsHandler.sendError(exchange, 500, "Scrape of " + targetParam + " failed: " + e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        MetricsHandler.sendError(exchange, 503, "Interrupted");
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  static boolean isHostPort(String target) {
+    if (!HOST_PORT.matcher(target).matches()) {
+      return false;
+    }
+    int port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+    return port > 0 && port <= 65535;
+  }
+
+  /**
+   * The target for the module and host:port, or null if it's new and there are already maxTargets.
+   */
+  private Target getTarget(String moduleName, Module module, String hostPort) {
+    List<String> key = Arrays.asList(moduleName, hostPort);
+    Target target = targets.get(key);
+    if (target == null) {
+      synchronized (targets) {
+        target = targets.get(key);
+        if (target == null) {
+          if (targets.size() >= maxTargets) {
+            return null;
+          }
+          target = new Target(module.config.forJmxUrl(module.jmxUrlTemplate.replace("{target}", hostPort)));
+          targets.put(key, target);
+        }
+      }
+    }
+    target.lastUsedNanos = System.nanoTime();
+    return target;
+  }
+
+  private void evictIdleTargets() {
+    Iterator<Target> it = targets.values().iterator();
+    while (it.hasNext()) {
+      Target target = it.next();
+      if (System.nanoTime() - target.lastUsedNanos > targetIdleNanos) {
+        it.remove();
+        target.collector.close();
+      }
+    }
+  }
+
+  /**
+   * Leave a little of the Prometheus scrape timeout for the response to get back.
+   */
+  long timeoutMillis(String header) {
+    if (header == null) {
+      return defaultTimeoutMillis;
+    }
+    try {
+      long millis = (long) (Double.parseDouble(header) * 1000);
+      return Math.max(millis - 500, millis / 2);
+    } catch (NumberFormatException e) {
+      return defaultTimeoutMillis;
+    }
+  }
+
+  private static Map<String, String> parseQuery(String query) throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query == null) {
+      return params;
+    }
+    for (String pair : query.split("&")) {
+      int idx = pair.indexOf('=');
+      if (idx < 0) {
+        params.put(URLDecoder.decode(pair, "UTF-8"), "");
+      } else {
+        params.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"), URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  private static class Module {
+    final Config config;
+    final String jmxUrlTemplate;
+
+    Module(Config config, String jmxUrlTemplate) {
+      this.config = config;
+      this.jmxUrlTemplate = jmxUrlTemplate;
+    }
+  }
+
+  /**
+   * A scraped target. Requests arriving while a scrape is running wait for
+   * that scrape, so a hung target ties up one thread rather than one per request.
+   */
+  private class Target {
+    final JmxCollector collector;
+    volatile long lastUsedNanos = System.nanoTime();
+    private Future<TextFormatBuffer> inFlight;
+
+    Target(Config config) {
+      try {
+        collector = new JmxCollector(config);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    synchronized Future<TextFormatBuffer> scrape() {
+      if (inFlight == null || inFlight.isDone()) {
+        inFlight = scrapes.submit(new Callable<TextFormatBuffer>() {
+          public TextFormatBuffer call() {
+            return collector.collectTextFormat();
+          }
+        });
+      }
+      return inFlight;
+    }
+  }
+}
@@ -1,10 +1,13 @@
 package io.prometheus.jmx;
 
 import java.io.File;
+import java.io.FileReader;
 import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.Executors;
 
-import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
+import com.sun.net.httpserver.HttpServer;
+import org.yaml.snakeyaml.Yaml;
 
 public class WebServer {
 
@@ -25,8 +28,32 @@ public class WebServer {
       port = Integer.parseInt(hostnamePort[0]);
       socket = new InetSocketAddress(port);
     }
-    Config config = Config.from(new File(args[1]));
-    new JmxCollector(config).register();
-    new HTTPServer(socket, CollectorRegistry.defaultRegistry);
+
+    File configFile = new File(args[1]);
+    FileReader fr = new FileReader(configFile);
+    Map<String, Object> yamlConfig;
+    try {
+      yamlConfig = (Map<String, Object>) new Yaml().load(fr);
+    } finally {
+      fr.close();
+    }
+    if (MultiTargetHandler.isMultiTarget(yamlConfig)) {
+      // Scrapes block the handling thread until they finish or time out, so don't use a small fixed pool.
+      MultiTargetHandler handler = MultiTargetHandler.from(yamlConfig);
+      HttpServer server = HttpServer.create(socket, 3);
+      server.createContext("/", handler);
+      server.createContext("/metrics", handler);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+      return;
+    }
+
+    Config config = Config.from(configFile);
+    MetricsHandler handler = new MetricsHandler(new JmxCollector(config));
+    HttpServer server = HttpServer.create(socket, 3);
+    server.createContext("/", handler);
+    server.createContext("/metrics", handler);
+    server.setExecutor(Executors.newFixedThreadPool(5));
+    server.start();
   }
 }
@@ -0,0 +1,45 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface BlockingMBean {
+    public int getValue();
+}
+
+/**
+ * A bean whose reads block until the test releases them.
+ */
+class Blocking implements BlockingMBean {
+    static final String NAME = "target:type=Blocking";
+    static final AtomicInteger reads = new AtomicInteger();
+    static volatile CountDownLatch started = new CountDownLatch(1);
+    static volatile CountDownLatch release = new CountDownLatch(1);
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        // Shared by the test classes, which run in the same JVM.
+        if (!mbs.isRegistered(new ObjectName(NAME))) {
+            mbs.registerMBean(new Blocking(), new ObjectName(NAME));
+        }
+    }
+
+    static void reset() {
+        reads.set(0);
+        started = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+    }
+
+    public int getValue() {
+        reads.incrementAndGet();
+        started.countDown();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 1;
+    }
+}
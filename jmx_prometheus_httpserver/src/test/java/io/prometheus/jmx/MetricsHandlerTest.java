@@ -0,0 +1,78 @@
+package io.prometheus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsHandlerTest {
+
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        TargetValue.registerBean(ManagementFactory.getPlatformMBeanServer());
+        JmxCollector collector = new JmxCollector("---\nwhitelistObjectNames:\n- `target:type=Value`".replace('`', '"'));
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 3);
+        server.createContext("/metrics", new MetricsHandler(collector));
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private String get(String query) throws Exception {
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/metrics" + query);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+        InputStream in = connection.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+            body.write(chunk, 0, n);
+        }
+        in.close();
+        return body.toString("UTF-8");
+    }
+
+    @Test
+    public void testScrapeAndDefaultRegistryAreServed() throws Exception {
+        String body = get("");
+        assertTrue(body.contains("target_Value_Value 42.0"));
+        assertTrue(body.contains("jmx_scrape_error 0.0"));
+        assertTrue(body.contains("jmx_config_reload_success_total"));
+    }
+
+    @Test
+    public void testNameFilter() throws Exception {
+        String body = get("?name%5B%5D=target_Value_Value&name[]=jmx_config_reload_success_total");
+        assertTrue(body.contains("target_Value_Value 42.0"));
+        assertTrue(body.contains("jmx_config_reload_success_total"));
+        assertFalse(body.contains("jmx_scrape_error"));
+        assertFalse(body.contains("jmx_config_reload_failure_total"));
+    }
+
+    @Test
+    public void testParseNames() throws Exception {
+        assertTrue(MetricsHandler.parseNames(null).isEmpty());
+        assertTrue(MetricsHandler.parseNames("name=foo&names[]=bar").isEmpty());
+        Set<String> names = MetricsHandler.parseNames("name%5B%5D=foo&module=x&name[]=bar%5F");
+        assertEquals(2, names.size());
+        assertTrue(names.contains("foo"));
+        assertTrue(names.contains("bar_"));
+    }
+}
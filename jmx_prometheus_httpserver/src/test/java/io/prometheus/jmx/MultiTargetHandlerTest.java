@@ -0,0 +1,203 @@
+package io.prometheus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.rmi.registry.LocateRegistry;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+public class MultiTargetHandlerTest {
+
+    private static final String MODULES = "modules:\n  default:\n    whitelistObjectNames: [`target:type=Value`]\n  blocking:\n    whitelistObjectNames: [`target:type=Blocking`]\n";
+
+    // The in-process target, reached over RMI like any other.
+    private static JMXConnectorServer connectorServer;
+    private static String target;
+    private HttpServer server;
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        TargetValue.registerBean(mbs);
+        Blocking.registerBean(mbs);
+
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        LocateRegistry.createRegistry(port);
+        connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(
+                new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi"), null, mbs);
+        connectorServer.start();
+        target = "localhost:" + port;
+    }
+
+    @AfterClass
+    public static void OneTimeTearDown() throws Exception {
+        connectorServer.stop();
+    }
+
+    @After
+    public void tearDown() {
+        Blocking.release.countDown();
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private MultiTargetHandler start(String config) throws Exception {
+        MultiTargetHandler handler = MultiTargetHandler.from((Map<String, Object>) new Yaml().load((MODULES + config).replace('`', '"')));
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 3);
+        server.createContext("/metrics", handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return handler;
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Response get(String query, String timeoutSeconds) throws Exception {
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/metrics?" + query);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (timeoutSeconds != null) {
+            connection.setRequestProperty(MultiTargetHandler.TIMEOUT_HEADER, timeoutSeconds);
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+            body.write(chunk, 0, n);
+        }
+        in.close();
+        return new Response(status, body.toString("UTF-8"));
+    }
+
+    @Test
+    public void testTargetIsScraped() throws Exception {
+        start("");
+        Response response = get("target=" + target, null);
+        assertEquals(200, response.status);
+        assertTrue(response.body.contains("target_Value_Value 42.0"));
+        assertTrue(response.body.contains("jmx_scrape_error 0.0"));
+        // The exporter's own metrics are only served without a target.
+        assertFalse(response.body.contains("jmx_target_scrape_failures_total"));
+    }
+
+    @Test
+    public void testHostPort() throws Exception {
+        assertTrue(MultiTargetHandler.isHostPort("localhost:9999"));
+        assertTrue(MultiTargetHandler.isHostPort("127.0.0.1:9999"));
+        assertTrue(MultiTargetHandler.isHostPort("[::1]:9999"));
+        assertTrue(MultiTargetHandler.isHostPort("[fe80::1:2]:65535"));
+        assertFalse(MultiTargetHandler.isHostPort("localhost"));
+        assertFalse(MultiTargetHandler.isHostPort("localhost:"));
+        assertFalse(MultiTargetHandler.isHostPort("[::1]"));
+        assertFalse(MultiTargetHandler.isHostPort("::1:9999"));
+        assertFalse(MultiTargetHandler.isHostPort("localhost:0"));
+        assertFalse(MultiTargetHandler.isHostPort("localhost:65536"));
+        assertFalse(MultiTargetHandler.isHostPort("service:jmx:rmi:///jndi/rmi://localhost:9999/jmxrmi"));
+        assertFalse(MultiTargetHandler.isHostPort("localhost:9999/jmxrmi"));
+    }
+
+    @Test
+    public void testBadTargetsAreRejected() throws Exception {
+        start("");
+        assertEquals(400, get("target=localhost", null).status);
+        assertEquals(400, get("target=%5B%3A%3A1%5D", null).status);
+        assertEquals(400, get("target=service%3Ajmx%3Armi%3A%2F%2F%2Fjndi%2Frmi%3A%2F%2Flocalhost%3A9999%2Fjmxrmi", null).status);
+        assertEquals(400, get("target=" + target + "&module=unknown", null).status);
+    }
+
+    @Test
+    public void testScrapeTimeoutHeader() throws Exception {
+        MultiTargetHandler handler = start("targetTimeoutSeconds: 7\n");
+        assertEquals(7000, handler.timeoutMillis(null));
+        assertEquals(7000, handler.timeoutMillis("soon"));
+        // Half a second is left for the response to get back, or half of short timeouts.
+        assertEquals(9500, handler.timeoutMillis("10"));
+        assertEquals(2000, handler.timeoutMillis("2.5"));
+        assertEquals(400, handler.timeoutMillis("0.8"));
+    }
+
+    @Test
+    public void testMaxTargets() throws Exception {
+        start("maxTargets: 1\n");
+        double tooMany = MultiTargetHandler.targetScrapeFailures.labels("too_many_targets").get();
+        assertEquals(200, get("target=" + target, null).status);
+        assertEquals(503, get("target=" + target.replace("localhost", "127.0.0.1"), null).status);
+        assertEquals(tooMany + 1, MultiTargetHandler.targetScrapeFailures.labels("too_many_targets").get(), .001);
+        // The target that got in keeps being served.
+        assertEquals(200, get("target=" + target, null).status);
+    }
+
+    @Test
+    public void testIdleTargetsAreEvicted() throws Exception {
+        start("maxTargets: 1\ntargetIdleSeconds: 0\n");
+        assertEquals(200, get("target=" + target, null).status);
+        // The first target has been idle for longer than no time at all, so it makes way.
+        assertEquals(200, get("target=" + target.replace("localhost", "127.0.0.1"), null).status);
+        assertEquals(200, get("target=" + target, null).status);
+    }
+
+    @Test(timeout = 30000)
+    public void testRequestsJoiningATimedOutScrapeGet503() throws Exception {
+        Blocking.reset();
+        start("");
+        double timeouts = MultiTargetHandler.targetScrapeFailures.labels("timeout").get();
+        assertEquals(503, get("module=blocking&target=" + target, "0.2").status);
+        assertTrue(Blocking.started.await(10, TimeUnit.SECONDS));
+        // The scrape is still stuck on the bean, so this request waits on it rather than start another.
+        assertEquals(503, get("module=blocking&target=" + target, "0.2").status);
+        assertEquals(1, Blocking.reads.get());
+        assertEquals(timeouts + 2, MultiTargetHandler.targetScrapeFailures.labels("timeout").get(), .001);
+
+        Blocking.release.countDown();
+        Response response = get("module=blocking&target=" + target, "10");
+        assertEquals(200, response.status);
+        assertTrue(response.body.contains("target_Blocking_Value 1.0"));
+    }
+
+    @Test
+    public void testNameFilter() throws Exception {
+        start("");
+        Response response = get("target=" + target + "&name%5B%5D=target_Value_Value", null);
+        assertEquals(200, response.status);
+        assertTrue(response.body.contains("target_Value_Value 42.0"));
+        assertFalse(response.body.contains("jmx_scrape_error"));
+
+        // Without a target, the filter applies to the exporter's own metrics.
+        response = get("name%5B%5D=jmx_config_reload_success_total", null);
+        assertEquals(200, response.status);
+        assertTrue(response.body.contains("jmx_config_reload_success_total"));
+        assertFalse(response.body.contains("jmx_config_reload_failure_total"));
+        assertFalse(response.body.contains("target_Value_Value"));
+    }
+}
@@ -0,0 +1,24 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface TargetValueMBean {
+    public int getValue();
+}
+
+class TargetValue implements TargetValueMBean {
+    static final String NAME = "target:type=Value";
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        // Shared by the test classes, which run in the same JVM.
+        if (!mbs.isRegistered(new ObjectName(NAME))) {
+            mbs.registerMBean(new TargetValue(), new ObjectName(NAME));
+        }
+    }
+
+    public int getValue() {
+        return 42;
+    }
+}